@@ -0,0 +1,7 @@
+#!/usr/bin/env zsh
+
+# lib/jmh/ should contain jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3 jars
+javac -classpath lib/weka-3.7.0.jar:lib/jfreechart-1.0.13.jar:lib/jcommon-1.0.16.jar:${(j.:.)$(echo lib/jmh/*.jar)}\
+	  -d bench/out\
+	  ru/ifmo/ctddev/mazin/AFA/*.java\
+	  bench/ru/ifmo/ctddev/mazin/AFA/*.java
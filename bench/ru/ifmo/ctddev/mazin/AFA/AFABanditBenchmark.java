@@ -0,0 +1,84 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import org.openjdk.jmh.annotations.*;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of one AFABandit step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AFABanditBenchmark {
+
+    @State(Scope.Thread)
+    public static class Data {
+        @Param({"car.aarff", "vowel.arff", "audiology.aarff", "bank-data.aarff"})
+        public String dataset;
+
+        @Param({"0.3", "0.5", "0.7"})
+        public double missingRate;
+
+        @Param({"EXHAUSTIVE", "LAZY", "THRESHOLD"})
+        public AFABandit.SelectionMode selectionMode;
+
+        Instances instances;
+        Instances trainMissing;
+        int batchSize;
+
+        AFABandit bandit; // rewards of it are recomputed, it doesn't acquire anything
+        J48 classifier;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            instances = BenchmarkData.load(dataset);
+            trainMissing = BenchmarkData.makeMissing(instances, missingRate);
+            batchSize = BenchmarkData.getBatchSize(instances);
+
+            bandit = new AFABandit(trainMissing, new SimpleQueryManager(instances), batchSize);
+            classifier = bandit.makeClassifier();
+        }
+    }
+
+    /**
+     * Fresh method for every invocation: a step acquires values and
+     * attribute rewards are cached until values change.
+     */
+    @State(Scope.Thread)
+    public static class Step {
+        AFABandit bandit;
+
+        @Setup(Level.Invocation)
+        public void setUp(Data data) throws Exception {
+            bandit = new AFABandit(data.trainMissing, new SimpleQueryManager(data.instances), data.batchSize);
+            bandit.setSelectionMode(data.selectionMode);
+        }
+    }
+
+    @Benchmark
+    public List<Pair<Integer, Integer>> performStep(Data data, Step step) throws Exception {
+        step.bandit.setRewardsForInstances(data.classifier);
+        step.bandit.setRewardsForAttributes();
+        List<Pair<Integer, Integer>> queries = step.bandit.performStep(data.batchSize);
+        step.bandit.awaitValues();
+        return queries;
+    }
+
+    @Benchmark
+    public AFABandit setRewardsForInstances(Data data) throws Exception {
+        data.bandit.setRewardsForInstances(data.classifier);
+        return data.bandit;
+    }
+
+    @Benchmark
+    public AFABandit setRewardsForAttributes(Step step) throws Exception {
+        step.bandit.setRewardsForAttributes();
+        return step.bandit;
+    }
+}
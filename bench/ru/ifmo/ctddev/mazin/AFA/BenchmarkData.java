@@ -0,0 +1,43 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instances;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Datasets of benchmarks: bundled datasets from "afa.datasetsDir"
+ * (res/afaBandit_cool_datasets by default) with missing values made with a
+ * fixed seed, so every fork measures the same data.
+ */
+public class BenchmarkData {
+    public static final String DATASETS_DIR_PROPERTY = "afa.datasetsDir";
+    public static final int SEED = 137;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param datasetFileName e.g. "car.aarff"
+     * @return instances with class index set to the last attribute
+     * @throws Exception
+     */
+    public static Instances load(String datasetFileName) throws Exception {
+        String dir = System.getProperty(DATASETS_DIR_PROPERTY,
+                System.getProperty("user.dir") + "/res/afaBandit_cool_datasets");
+        Instances instances = DatasetCache.getInstances(new File(dir, datasetFileName));
+        instances.setClassIndex(instances.numAttributes() - 1);
+        return instances;
+    }
+
+    public static Instances makeMissing(Instances instances, double missingRate) {
+        return DatasetFactory.makeWithMissingAttrsUniformly(instances, missingRate, new Random(SEED));
+    }
+
+    /**
+     * Batch size as in DatasetTest.massiveTest(..): 1/100 of possible queries.
+     */
+    public static int getBatchSize(Instances instances) {
+        return Math.max(1, instances.numInstances() * (instances.numAttributes() - 1) / 100);
+    }
+}
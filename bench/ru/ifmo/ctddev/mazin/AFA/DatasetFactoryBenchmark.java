@@ -0,0 +1,48 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import org.openjdk.jmh.annotations.*;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accuracy of a tree and making of missing values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class DatasetFactoryBenchmark {
+    @Param({"car.aarff", "vowel.arff", "audiology.aarff", "bank-data.aarff"})
+    public String dataset;
+
+    @Param({"0.3", "0.5", "0.7"})
+    public double missingRate;
+
+    private Instances instances;
+    private Instances trainMissing;
+    private J48 classifier;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        instances = BenchmarkData.load(dataset);
+        trainMissing = BenchmarkData.makeMissing(instances, missingRate);
+        classifier = DatasetFactory.staticMakeClassifier(trainMissing);
+        random = new Random(BenchmarkData.SEED);
+    }
+
+    @Benchmark
+    public double calculateAccuracy() throws Exception {
+        return DatasetFactory.calculateAccuracy(classifier, instances);
+    }
+
+    @Benchmark
+    public Instances makeWithMissingAttrsUniformly() {
+        return DatasetFactory.makeWithMissingAttrsUniformly(instances, missingRate, random);
+    }
+}
@@ -0,0 +1,86 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import org.openjdk.jmh.annotations.*;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One scoring step (concurrentPerformStep(..)) of SEU-US and SEU-ES.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SEUBenchmark {
+
+    @State(Scope.Thread)
+    public static class Data {
+        @Param({"car.aarff", "vowel.arff", "audiology.aarff", "bank-data.aarff"})
+        public String dataset;
+
+        @Param({"0.3", "0.5", "0.7"})
+        public double missingRate;
+
+        Instances instances;
+        Instances trainMissing;
+        int batchSize;
+        LearningCurveEngine.MethodFactory uniformSampling;
+        LearningCurveEngine.MethodFactory errorSampling;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            instances = BenchmarkData.load(dataset);
+            trainMissing = BenchmarkData.makeMissing(instances, missingRate);
+            batchSize = BenchmarkData.getBatchSize(instances);
+
+            // alpha and esParam of DatasetTest.massiveTest(..)
+            uniformSampling = DatasetFactory.seuUniformSamplingFactory(instances, batchSize, 10);
+            uniformSampling.prepare(trainMissing);
+            errorSampling = DatasetFactory.seuErrorSamplingFactory(instances, batchSize, instances.numInstances() / 10);
+            errorSampling.prepare(trainMissing);
+        }
+    }
+
+    /**
+     * Methods right before their first step (discInstances are set by
+     * constructors), made for every invocation because a step acquires values.
+     */
+    @State(Scope.Thread)
+    public static class Step {
+        SEUUniformSampling uniformSampling;
+        J48 uniformClassifier;
+        SEUErrorSampling errorSampling;
+        J48 errorClassifier;
+
+        @Setup(Level.Invocation)
+        public void setUp(Data data) throws Exception {
+            QueryManager queryManager = new SimpleQueryManager(data.instances);
+
+            uniformSampling = (SEUUniformSampling) data.uniformSampling.make(data.trainMissing, queryManager,
+                    new Random(BenchmarkData.SEED));
+            uniformClassifier = uniformSampling.makeClassifier();
+
+            errorSampling = (SEUErrorSampling) data.errorSampling.make(data.trainMissing, queryManager,
+                    new Random(BenchmarkData.SEED));
+            errorClassifier = errorSampling.makeClassifier();
+            errorSampling.candidateInstances = errorSampling.getCandidateInstances(errorClassifier);
+        }
+    }
+
+    @Benchmark
+    public List<Pair<Integer, Integer>> uniformSamplingStep(Data data, Step step) throws Exception {
+        int batchSize = Math.min(data.batchSize, step.uniformSampling.getPossibleQueriesNum());
+        return step.uniformSampling.concurrentPerformStep(batchSize, step.uniformClassifier);
+    }
+
+    @Benchmark
+    public List<Pair<Integer, Integer>> errorSamplingStep(Data data, Step step) throws Exception {
+        int batchSize = Math.min(data.batchSize, step.errorSampling.getPossibleQueriesNum());
+        return step.errorSampling.concurrentPerformStep(batchSize, step.errorClassifier);
+    }
+}
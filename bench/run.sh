@@ -0,0 +1,4 @@
+#!/usr/bin/env zsh
+
+# e.g. bench/run.sh AFABanditBenchmark -p dataset=car.aarff -p missingRate=0.5
+java -cp bench/out:lib/weka-3.7.0.jar:${(j.:.)$(echo lib/jmh/*.jar)} org.openjdk.jmh.Main "$@"
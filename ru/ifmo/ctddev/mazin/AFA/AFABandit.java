@@ -1,29 +1,37 @@
 package ru.ifmo.ctddev.mazin.AFA;
 
-import weka.attributeSelection.InfoGainAttributeEval;
 import weka.classifiers.trees.J48;
-import weka.core.Instance;
 import weka.core.Instances;
 
-import java.text.DecimalFormat;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 public class AFABandit extends AFAMethod {
-    private int totalNumQueries; // total number of queries
+    /**
+     * How the best queries of a step are found, all modes give the same result.
+     */
+    public enum SelectionMode {
+        EXHAUSTIVE, // score of every possible query is computed
+        LAZY,       // queries are scored in order of upper bounds of their scores until the best are confirmed
+        THRESHOLD   // frontier of (instance, attribute) pairs, both sorted by their terms, until the best are confirmed
+    }
 
-    private List<Integer> instNumQueries; // number of queries for instance (by index)
-    private List<Integer> attrNumQueries; // number of queries for attribute (by index)
+    private double[] instancesReward; // reward for instance (by index)
+    private double[] attributesReward; // reward for attribute (by index)
+    private InfoGainTracker infoGain; // source of attributes reward
 
-    private List<Double> instancesReward;
-    private List<Double> attributesReward;
+    private double[] instTerms; // alpha * instance reward, refreshed at each step
+    private double[] attrTerms; // beta * attribute reward, refreshed at each step
+    private int[] attrCounts; // number of known values for attribute, refreshed at each step
+    private BoundedTopK topQueries; // best queries of current step
+    private BanditQueryIndex queryIndex; // possible queries ordered for LAZY and THRESHOLD selection, null if it isn't used
+    private SelectionMode selectionMode = SelectionMode.EXHAUSTIVE;
 
     private double alpha; // todo obj coef
     private double beta; // todo feat coef
 
     public AFABandit(Instances instances, QueryManager queryManager, int b) {
-        this.instances = new Instances(instances);
+        setInstances(instances);
         this.queryManager = queryManager;
         this.b = b;
         alpha = 1.0;
@@ -33,7 +41,7 @@ public class AFABandit extends AFAMethod {
     }
 
     public AFABandit(Instances instances, QueryManager queryManager, int b, double alpha) {
-        this.instances = new Instances(instances);
+        setInstances(instances);
         this.queryManager = queryManager;
         this.b = b;
         this.alpha = alpha;
@@ -43,7 +51,7 @@ public class AFABandit extends AFAMethod {
     }
 
     public AFABandit(Instances instances, QueryManager queryManager, int b, double alpha, double beta) {
-        this.instances = new Instances(instances);
+        setInstances(instances);
         this.queryManager = queryManager;
         this.b = b;
         this.alpha = alpha;
@@ -61,42 +69,16 @@ public class AFABandit extends AFAMethod {
         n = instances.numInstances();
         m = instances.numAttributes() - 1;
 
-        instNumQueries = new ArrayList<>(n);
-        for (int i = 0; i < n; ++i) {
-            instNumQueries.add(0);
-        }
+        state = new AcquisitionState(instances, m);
 
-        attrNumQueries = new ArrayList<>(m);
-        for (int i = 0; i < m; ++i) {
-            attrNumQueries.add(0);
-        }
+        instancesReward = new double[n];
+        attributesReward = new double[m];
+        infoGain = new InfoGainTracker(instances);
 
-        possibleQueries = new LinkedHashMap<>(n);
-        for (int i = 0; i < n; ++i) {
-            Set<Integer> possibleAttrsToQuery = new HashSet<>();
-            for (int j = 0; j < m; ++j) {
-                if (!instances.instance(i).isMissing(j)) {
-                    instNumQueries.set(i, instNumQueries.get(i) + 1);
-                    attrNumQueries.set(j, attrNumQueries.get(j) + 1);
-                    ++totalNumQueries;
-                } else {
-                    possibleAttrsToQuery.add(j);
-                }
-            }
-            if (!possibleAttrsToQuery.isEmpty()) {
-                possibleQueries.put(i, possibleAttrsToQuery);
-            }
-        }
-
-        instancesReward = new ArrayList<>(n);
-        for (int i = 0; i < n; ++i) {
-            instancesReward.add(0.0);
-        }
-
-        attributesReward = new ArrayList<>(m);
-        for (int i = 0; i < m; ++i) {
-            attributesReward.add(0.0);
-        }
+        instTerms = new double[n];
+        attrTerms = new double[m];
+        attrCounts = new int[m];
+        topQueries = new BoundedTopK(b);
     }
 
     private String areInstancesCorrect() {
@@ -123,22 +105,66 @@ public class AFABandit extends AFAMethod {
     /**
      * Perform AFABandit method for active feature-value acquiring.
      *
+     * If the method is pipelined, queries of step i + 1 are selected with
+     * the classifier of step i - 1 while values of step i are acquired, and
+     * the last step selects queries of the first step of the next call.
+     *
      * @param k number of performStep running
      * @return list of pairs (acquired queries, build classifier) for each step
      * @throws Exception
      */
     public List<Pair<List<Pair<Integer, Integer>>, J48>> perform(int k) throws Exception {
+        long start = phaseStarted();
         J48 classifier = makeClassifier();
+        phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
         List<Pair<List<Pair<Integer, Integer>>, J48>> res = new LinkedList<>();
+        List<Pair<Integer, Integer>> bestQueries = pipelinedQueries; // queries of current step if already selected
+        int candidatesNum = pipelinedCandidatesNum;
+        pipelinedQueries = null;
         for (int i = 0; i < k; ++i) {
-            if (possibleQueries.size() == 0) {
+            if (bestQueries == null && state.isEmpty()) {
                 break; // nothing to query
             }
+            stepStarted();
+            if (bestQueries == null) {
+                candidatesNum = state.getPossibleQueriesNum();
+                bestQueries = selectQueries(classifier);
+            }
+
+            List<Pair<Integer, Integer>> nextQueries = null;
+            int nextCandidatesNum = 0;
+            if (pipelined && !state.isEmpty()) {
+                nextCandidatesNum = state.getPossibleQueriesNum();
+                nextQueries = selectQueries(classifier);
+            }
+
+            awaitValues();
+            start = phaseStarted();
+            classifier = makeClassifier();
+            phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
+            res.add(new Pair<>(bestQueries, classifier));
+            stepFinished(candidatesNum, bestQueries.size());
+
+            bestQueries = nextQueries;
+            candidatesNum = nextCandidatesNum;
+        }
+        pipelinedQueries = bestQueries; // requested for the first step of the next call
+        pipelinedCandidatesNum = candidatesNum;
 
-            setRewardsForInstances(classifier);
-            setRewardsForAttributes();
+        return res;
+    }
+
+    /**
+     * Score possible queries with 'classifier', choose the best ones and
+     * request their values.
+     */
+    private List<Pair<Integer, Integer>> selectQueries(J48 classifier) throws Exception {
+        long start = phaseStarted();
+        setRewardsForInstances(classifier);
+        setRewardsForAttributes();
+        phaseFinished(MetricsListener.Phase.SCORING, start);
 
-            // todo
+        // todo
 //            for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
 //                int instInd = entry.getKey();
 //                if (DatasetFactory.isInstMisclassified(classifier, instances.instance(instInd))) {
@@ -147,28 +173,19 @@ public class AFABandit extends AFAMethod {
 //            }
 //            System.out.println("end.. another one");
 
-            int batchSize = b;
-            int possibleQueriesNum = getRealPossibleQueries();
-            if (possibleQueriesNum < b) { // todo
-                batchSize = possibleQueriesNum;
-            }
-
-            List<Pair<Integer, Integer>> bestQueries = performStep(batchSize);
-            classifier = makeClassifier();
-            res.add(new Pair<>(bestQueries, classifier));
-
-            updatePossibleQueries();
+        int batchSize = b;
+        int possibleQueriesNum = getRealPossibleQueries();
+        if (possibleQueriesNum < b) { // todo
+            batchSize = possibleQueriesNum;
         }
 
-        return res;
+        return performStep(batchSize);
     }
 
 // todo
 //    boolean firstTime = true;
 
-    private List<Pair<Integer, Integer>> performStep(int b) {
-        List<Pair<Double, Pair<Integer, Integer>>> scores = new ArrayList<>();
-
+    List<Pair<Integer, Integer>> performStep(int b) {
 //        todo
 //        DecimalFormat df = new DecimalFormat("#.####");
 //        System.out.println("Attribute's reward");
@@ -185,65 +202,93 @@ public class AFABandit extends AFAMethod {
 //        System.out.println(String.format("%s\t%s\t\t\tREWARD: INST\t\tATTR\t\tCOMPL INST\t\tATTR\t\tSCORE", "i", "j"));
 //        todo
 
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            int i = entry.getKey();
-            for (Integer j : entry.getValue()) {
-                double score = getScoreMixed(i, j);
-                scores.add(new Pair<>(score, new Pair<>(i, j)));
-//                if (score < Double.MAX_VALUE && score > Double.MIN_VALUE) {
-//                    System.out.print(String.format("(%s, %s, %s), ", i, j, Double.valueOf(df.format(score))));
-//                }
+        long start = phaseStarted();
+
+        // Terms of getScoreMixed(..) which depend only on instance or only on attribute
+        for (int i = 0; i < n; ++i) {
+            instTerms[i] = alpha * instancesReward[i];
+        }
+        for (int j = 0; j < m; ++j) {
+            attrTerms[j] = beta * attributesReward[j];
+            attrCounts[j] = state.getAttrNumQueries(j);
+        }
+        double explorationNumerator = 2 * Math.log(state.getTotalNumQueries());
+        if (selectionMode != SelectionMode.EXHAUSTIVE) {
+            if (queryIndex == null) {
+                queryIndex = new BanditQueryIndex(state);
+            }
+            for (int i = 0; i < n; ++i) {
+                queryIndex.setInstTerm(i, instTerms[i]);
+            }
+            for (int j = 0; j < m; ++j) {
+                queryIndex.setAttrTerm(j, attrTerms[j]);
             }
-//            todo
-//            System.out.println("");
         }
 
-//        todo
-//        firstTime = false;
-//        System.out.println("-----------------");
-
-
-        // Choose best 'b' queries to acquire:
-        Collections.sort(scores, (o1, o2) -> o1.first < o2.first ? 1 : o1.first.equals(o2.first) ? 0 : -1);
+        // Choose best 'b' queries to acquire, ties are broken by (instIndex, attrIndex)
+        topQueries.reset(b);
+        if (selectionMode == SelectionMode.LAZY && explorationNumerator > 0) {
+            queryIndex.selectLazily(topQueries, explorationNumerator);
+        } else if (selectionMode == SelectionMode.THRESHOLD && explorationNumerator > 0) {
+            queryIndex.selectByThreshold(topQueries, explorationNumerator);
+        } else {
+            for (int i = state.nextInstance(0); i >= 0; i = state.nextInstance(i + 1)) {
+                double instTerm = instTerms[i];
+                int instCount = state.getInstNumQueries(i);
+                for (int j = state.nextAttr(i, 0); j >= 0; j = state.nextAttr(i, j + 1)) {
+                    // same as getScoreMixed(i, j)
+                    double score = instTerm + attrTerms[j] +
+                            Math.sqrt(explorationNumerator / (instCount + attrCounts[j]));
+                    topQueries.offer(score, i * m + j);
+                }
+            }
+        }
 
-        ArrayList<Pair<Integer, Integer>> bestQueries = scores.subList(0, b).stream()
-                .map(pair -> pair.second)
-                .collect(Collectors.toCollection(ArrayList::new));
+        int[] bestCells = topQueries.pollSortedIds();
+        List<Pair<Integer, Integer>> bestQueries = new ArrayList<>(bestCells.length);
+        for (int cell : bestCells) {
+            bestQueries.add(new Pair<>(cell / m, cell % m));
+        }
 
         for (Pair<Integer, Integer> query : bestQueries) {
-            acquireQuery(query.first, query.second);
-
-            instNumQueries.set(query.first, instNumQueries.get(query.first) + 1);
-            attrNumQueries.set(query.second, attrNumQueries.get(query.second) + 1);
-
-            ++totalNumQueries;
-
-            possibleQueries.get(query.first).remove(query.second);
+            state.acquire(query.first, query.second);
+            if (queryIndex != null) {
+                queryIndex.queryAcquired(query.first, query.second);
+            }
         }
+        requestValues(bestQueries);
+        phaseFinished(MetricsListener.Phase.SELECTION, start);
 
         return bestQueries;
     }
 
+    public void setSelectionMode(SelectionMode selectionMode) {
+        this.selectionMode = selectionMode;
+        if (selectionMode == SelectionMode.EXHAUSTIVE) {
+            queryIndex = null; // it's made again from the state if it's needed
+        }
+    }
+
     private double getScoreInst(int instIndex, int attrIndex) {
-        double instReward = instancesReward.get(instIndex);
-        double instExploration = Math.sqrt(2 * Math.log(totalNumQueries) /
-                instNumQueries.get(instIndex));
+        double instReward = instancesReward[instIndex];
+        double instExploration = Math.sqrt(2 * Math.log(state.getTotalNumQueries()) /
+                state.getInstNumQueries(instIndex));
         return instReward + instExploration;
     }
 
     private double getScoreAttr(int instIndex, int attrIndex) {
-        double attrReward = attributesReward.get(attrIndex);
-        double attrExploration = Math.sqrt(2 * Math.log(totalNumQueries) /
-                                           attrNumQueries.get(attrIndex));
+        double attrReward = attributesReward[attrIndex];
+        double attrExploration = Math.sqrt(2 * Math.log(state.getTotalNumQueries()) /
+                                           state.getAttrNumQueries(attrIndex));
         return attrReward + attrExploration;
     }
 
     private double getScoreMixed(int instIndex, int attrIndex) {
-        double instReward = instancesReward.get(instIndex); // todo CHANGE REWARD
-        double attrReward = attributesReward.get(attrIndex);
+        double instReward = instancesReward[instIndex]; // todo CHANGE REWARD
+        double attrReward = attributesReward[attrIndex];
 
-        double commonExploration = Math.sqrt(2 * Math.log(totalNumQueries) /
-                (instNumQueries.get(instIndex) + attrNumQueries.get(attrIndex)));
+        double commonExploration = Math.sqrt(2 * Math.log(state.getTotalNumQueries()) /
+                (state.getInstNumQueries(instIndex) + state.getAttrNumQueries(attrIndex)));
 
         double score = alpha * instReward + beta * attrReward + commonExploration;
 
@@ -270,25 +315,17 @@ public class AFABandit extends AFAMethod {
         return score;
     }
 
-    private void acquireQuery(int instIndex, int attrIndex) {
-        Instance inst = instances.instance(instIndex);
-        inst.setValue(attrIndex, queryManager.getValue(instIndex, attrIndex));
-    }
-
-    /**
-     * Remove complete instances from 'possibleQueries'
-     */
-    private void updatePossibleQueries() {
-        Set<Integer> completeInstances = possibleQueries.entrySet().stream()
-                                         .filter(entry -> entry.getValue().isEmpty())
-                                         .map(Map.Entry::getKey).collect(Collectors.toSet());
+    @Override
+    protected void valueAcquired(int instIndex, int attrIndex, double value) {
+        super.valueAcquired(instIndex, attrIndex, value);
 
-        completeInstances.forEach(possibleQueries::remove);
+        infoGain.valueAcquired(instIndex, attrIndex);
     }
 
-    private void setRewardsForInstances(J48 classifier) throws Exception {
+    void setRewardsForInstances(J48 classifier) throws Exception {
+        double[][] distributions = CompiledJ48.compile(classifier).distributions(instances);
         for (int i = 0; i < n; ++i) {
-            double[] probs = classifier.distributionForInstance(instances.instance(i));
+            double[] probs = distributions[i];
 
             // find class with maximum probability
             int maxIndex = -1;
@@ -310,10 +347,10 @@ public class AFABandit extends AFAMethod {
                     }
                 }
                 // then trueClassProb == maxProb:
-                instancesReward.set(i, getInstReward(maxProb, secondMaxProb));
+                instancesReward[i] = getInstReward(maxProb, secondMaxProb);
             } else { // if instance is misclassified
                 double trueClassProb = probs[(int) instances.instance(i).classValue()];
-                instancesReward.set(i, getInstReward(trueClassProb, maxProb));
+                instancesReward[i] = getInstReward(trueClassProb, maxProb);
             }
         }
     }
@@ -333,15 +370,18 @@ public class AFABandit extends AFAMethod {
         return (1.0 + (maxProb - trueClassProb)) / 2.0;
     }
 
-    private void setRewardsForAttributes() throws Exception {
-        InfoGainAttributeEval ig = new InfoGainAttributeEval();
-        ig.buildEvaluator(instances);
-
+    void setRewardsForAttributes() throws Exception {
         for (int i = 0; i < m; ++i) {
-            attributesReward.set(i, ig.evaluateAttribute(i));
+            attributesReward[i] = infoGain.evaluateAttribute(i);
         }
     }
 
+    @Override
+    protected void stateRestored() {
+        infoGain = new InfoGainTracker(instances);
+        queryIndex = null;
+    }
+
     public J48 makeClassifier() throws Exception {
         J48 classifier = new J48();
         classifier.setUseLaplace(true);
@@ -359,12 +399,7 @@ public class AFABandit extends AFAMethod {
     }
 
     public int getRealPossibleQueries() {
-        int res = 0;
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            res += entry.getValue().size();
-        }
-
-        return res;
+        return state.getPossibleQueriesNum();
     }
 
 
@@ -1,20 +1,61 @@
 package ru.ifmo.ctddev.mazin.AFA;
 
 import weka.classifiers.trees.J48;
+import weka.core.Instance;
 import weka.core.Instances;
 
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 abstract class AFAMethod {
     protected Instances instances;
+    protected double[][] rowValues; // values of rows of 'instances', acquired values are written there in place
     protected int n; // number of instances
     protected int m; // number of attributes (features)
     protected int b; // batch size to query at one step. If there are fewer than 'b'
                    // possible queries, acquire all remaining possible queries.
-    protected Map<Integer, Set<Integer>> possibleQueries; // list of attributes of instance with missing values
+    protected AcquisitionState state; // possible queries and numbers of known values
     protected QueryManager queryManager;
+    protected Random random; // source of randomness of the method, null if it doesn't need one
+    protected TaskScheduler scheduler = TaskScheduler.getShared(); // runs scoring of candidate queries
+    protected TaskScheduler.StepReport lastStepReport; // report of the last parallel step, null if none
+    protected MetricsListener metrics; // told durations of phases of steps, null if none
+    private long stepStartNanos; // start of current step, for 'metrics'
+    private long stepStartBytes; // bytes allocated by the thread before current step, for 'metrics'
+    private final LongAdder taskAllocatedBytes = new LongAdder(); // by tasks of current step in 'scheduler'
+    protected boolean pipelined; // whether next queries may be selected while values of previous ones are acquired
+    protected long stepBudgetMillis; // time budget of scoring at one step, 0 if candidates are scored exhaustively
+    protected boolean racing; // whether candidates are selected by RacingEvaluator
+    private final Deque<Pair<List<Pair<Integer, Integer>>, CompletableFuture<double[]>>> pendingValues =
+            new ArrayDeque<>(); // requested queries and their values (null if queryManager isn't batch one)
+    protected List<Pair<Integer, Integer>> pipelinedQueries; // queries of the first step of the next perform(..),
+                                                             // already requested, null if none
+    protected int pipelinedCandidatesNum; // number of candidates of 'pipelinedQueries'
+
+    /**
+     * Make 'instances' a copy of 'original' with rows owned by the method.
+     * Acquired values are written to 'rowValues', so the row isn't copied
+     * again as Instance.setValue(..) does on every call.
+     *
+     * @param original
+     */
+    protected void setInstances(Instances original) {
+        int num = original.numInstances();
+        instances = new Instances(original, num);
+        rowValues = new double[num][];
+        for (int i = 0; i < num; ++i) {
+            Instance inst = original.instance(i);
+            rowValues[i] = inst.toDoubleArray();
+            instances.add(new Instance(inst.weight(), rowValues[i])); // added copy shares values
+        }
+    }
 
     public J48 makeClassifier() throws Exception {
         J48 classifier = new J48();
@@ -23,10 +64,248 @@ abstract class AFAMethod {
         return classifier;
     }
 
+    public void setScheduler(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public TaskScheduler.StepReport getLastStepReport() {
+        return lastStepReport;
+    }
+
+    public void setMetricsListener(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return start time of a phase to pass to phaseFinished(..)
+     */
+    protected long phaseStarted() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    protected void phaseFinished(MetricsListener.Phase phase, long startNanos) {
+        if (metrics != null) {
+            metrics.phaseFinished(phase, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Allocations of a step are counted on the thread of the method and on
+     * workers of 'scheduler' running its tasks, so steps of other methods
+     * running at the same time aren't counted.
+     */
+    protected void stepStarted() {
+        if (metrics != null) {
+            stepStartBytes = StepMetrics.getThreadAllocatedBytes();
+            taskAllocatedBytes.reset();
+            TaskScheduler.setAllocationCounter(stepStartBytes < 0 ? null : taskAllocatedBytes);
+            stepStartNanos = System.nanoTime();
+        }
+    }
+
+    protected void stepFinished(int candidatesNum, int acquiredNum) {
+        if (metrics != null) {
+            long nanos = System.nanoTime() - stepStartNanos;
+            TaskScheduler.setAllocationCounter(null);
+            long bytes = -1;
+            if (stepStartBytes >= 0) {
+                bytes = StepMetrics.getThreadAllocatedBytes() - stepStartBytes + taskAllocatedBytes.sum();
+            }
+            metrics.stepFinished(candidatesNum, acquiredNum, nanos, bytes);
+        }
+    }
+
     public int getAllQueriesNum() {
         return n * m;
     }
 
+    /**
+     * If true, queries of the next step are selected while values of the
+     * current step are being acquired (scores don't take them into
+     * account), so latency of a BatchQueryManager overlaps with scoring.
+     * The last step of perform(..) selects and requests queries of the
+     * first step of the next call (see 'pipelinedQueries'), so steps
+     * overlap when the method is performed step by step too. Methods which
+     * don't support it ignore it.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Bound time of scoring of candidates at one step: candidates are scored
+     * in order of priority until the budget runs out and the best scored
+     * ones are acquired (see TaskScheduler.selectByPriority(..)). Methods
+     * which don't score candidates by the scheduler ignore it.
+     *
+     * @param stepBudgetMillis 0 to score all candidates
+     */
+    public void setStepBudgetMillis(long stepBudgetMillis) {
+        if (stepBudgetMillis < 0) {
+            throw new IllegalArgumentException("'stepBudgetMillis' should be >= 0");
+        }
+        this.stepBudgetMillis = stepBudgetMillis;
+    }
+
+    /**
+     * Select queries by successive halving on subsamples of the instances
+     * (see RacingEvaluator) instead of exact scoring of every candidate.
+     * It takes precedence over the step budget. Methods which don't score
+     * candidates by expected utility ignore it.
+     */
+    public void setRacing(boolean racing) {
+        this.racing = racing;
+    }
+
+    /**
+     * Start acquisition of values of 'queries', they are set by awaitValues().
+     * Queries must be already removed from the possible ones.
+     *
+     * @param queries
+     */
+    protected void requestValues(List<Pair<Integer, Integer>> queries) {
+        CompletableFuture<double[]> values = null;
+        if (queryManager instanceof BatchQueryManager) {
+            values = ((BatchQueryManager) queryManager).getValues(queries);
+        }
+        pendingValues.addLast(new Pair<>(queries, values));
+    }
+
+    /**
+     * Wait for values of the oldest request of requestValues(..) and set them.
+     *
+     * @throws Exception exception of the QueryManager
+     */
+    protected void awaitValues() throws Exception {
+        Pair<List<Pair<Integer, Integer>>, CompletableFuture<double[]>> request = pendingValues.pollFirst();
+        if (request == null) {
+            return;
+        }
+
+        long start = phaseStarted();
+        double[] values = null;
+        if (request.second != null) {
+            try {
+                values = request.second.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        int k = 0;
+        for (Pair<Integer, Integer> query : request.first) {
+            double value = values == null ? queryManager.getValue(query.first, query.second) : values[k];
+            valueAcquired(query.first, query.second, value);
+            ++k;
+        }
+        phaseFinished(MetricsListener.Phase.ACQUISITION, start);
+    }
+
+    /**
+     * Set acquired value.
+     */
+    protected void valueAcquired(int instIndex, int attrIndex, double value) {
+        rowValues[instIndex][attrIndex] = value;
+    }
+
+    /**
+     * Write state of acquisition: batch size, possible queries, acquired
+     * values, counters, queries requested for the next step of a pipelined
+     * method (their values are written as missing) and state of the random.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        if (pendingValues.size() > (pipelinedQueries == null ? 0 : 1)) {
+            throw new IllegalStateException("Values of requested queries aren't acquired yet");
+        }
+        out.writeInt(b);
+        state.write(out);
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < m; ++j) {
+                if (state.isAcquired(i, j)) {
+                    out.writeDouble(instances.instance(i).value(j));
+                }
+            }
+        }
+        if (pipelinedQueries == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(pipelinedQueries.size());
+            for (Pair<Integer, Integer> query : pipelinedQueries) {
+                out.writeInt(query.first);
+                out.writeInt(query.second);
+            }
+            out.writeInt(pipelinedCandidatesNum);
+        }
+
+        if (random == null) {
+            out.writeInt(0);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(random);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Restore state written by writeState(..). The method must be made from
+     * the same instances as the one which state was written, after that it
+     * continues exactly as that one would. Values of queries requested for
+     * the next step are requested again.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readState(DataInputStream in) throws IOException {
+        b = in.readInt();
+        state.read(in);
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < m; ++j) {
+                if (state.isAcquired(i, j)) {
+                    rowValues[i][j] = in.readDouble();
+                }
+            }
+        }
+        pendingValues.clear();
+        pipelinedQueries = null;
+        int pipelinedNum = in.readInt();
+        if (pipelinedNum >= 0) {
+            pipelinedQueries = new ArrayList<>(pipelinedNum);
+            for (int k = 0; k < pipelinedNum; ++k) {
+                int instIndex = in.readInt();
+                pipelinedQueries.add(new Pair<>(instIndex, in.readInt()));
+            }
+            pipelinedCandidatesNum = in.readInt();
+        }
+
+        int randomLength = in.readInt();
+        if (randomLength > 0) {
+            byte[] bytes = new byte[randomLength];
+            in.readFully(bytes);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                random = (Random) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+
+        stateRestored();
+        if (pipelinedQueries != null) {
+            requestValues(pipelinedQueries);
+        }
+    }
+
+    /**
+     * Called after the state was restored by readState(..) to update
+     * structures which depend on the instances.
+     */
+    protected void stateRestored() {
+    }
+
     abstract List<Pair<List<Pair<Integer, Integer>>, J48>> perform(int k) throws Exception;
     abstract int getRealPossibleQueries();
 }
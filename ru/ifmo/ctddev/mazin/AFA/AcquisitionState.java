@@ -0,0 +1,282 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instances;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Acquisition state shared by AFA methods: the pool of possible queries and
+ * the number of known values of every instance and attribute.
+ *
+ * Pool is stored as one bitset of missing attributes per instance, packed
+ * into a single long array. Counters are plain int arrays and all totals are
+ * updated together with the cells, so no query needs a walk over the pool.
+ */
+public class AcquisitionState {
+    private final int n; // number of instances
+    private final int m; // number of attributes (features)
+    private final int words; // number of longs in the bitset of one instance
+
+    private final long[] possible; // bit 'j' of instance 'i' is set if query (i, j) is possible
+    private final long[] acquired; // bit 'j' of instance 'i' is set if value (i, j) was acquired
+    private final int[] instPossibleNum; // number of possible queries for instance (by index)
+    private int possibleNum; // total number of possible queries
+    private int openInstancesNum; // number of instances with at least one possible query
+
+    private final int[] instNumQueries; // number of known values for instance (by index)
+    private final int[] attrNumQueries; // number of known values for attribute (by index)
+    private int totalNumQueries; // total number of known values
+
+    /**
+     * Make state of 'instances': every missing value of first 'm' attributes
+     * is a possible query, every present one is a known value.
+     *
+     * @param instances instances with missing values
+     * @param m number of attributes (class attribute is assumed to be the last one)
+     */
+    public AcquisitionState(Instances instances, int m) {
+        this.n = instances.numInstances();
+        this.m = m;
+        this.words = (m + 63) >>> 6;
+
+        possible = new long[n * words];
+        acquired = new long[n * words];
+        instPossibleNum = new int[n];
+        instNumQueries = new int[n];
+        attrNumQueries = new int[m];
+
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < m; ++j) {
+                if (instances.instance(i).isMissing(j)) {
+                    add(i, j);
+                } else {
+                    ++instNumQueries[i];
+                    ++attrNumQueries[j];
+                    ++totalNumQueries;
+                }
+            }
+        }
+    }
+
+    public int getInstanceNum() {
+        return n;
+    }
+
+    public int getAttributesNum() {
+        return m;
+    }
+
+    public boolean isPossible(int instIndex, int attrIndex) {
+        return (possible[instIndex * words + (attrIndex >>> 6)] & (1L << attrIndex)) != 0;
+    }
+
+    /**
+     * Add query (instIndex, attrIndex) to the pool of possible queries.
+     */
+    public void add(int instIndex, int attrIndex) {
+        int word = instIndex * words + (attrIndex >>> 6);
+        long bit = 1L << attrIndex;
+        if ((possible[word] & bit) != 0) {
+            return;
+        }
+
+        possible[word] |= bit;
+        if (instPossibleNum[instIndex]++ == 0) {
+            ++openInstancesNum;
+        }
+        ++possibleNum;
+    }
+
+    /**
+     * Remove query (instIndex, attrIndex) from the pool of possible queries
+     * without counting it as known.
+     */
+    public void remove(int instIndex, int attrIndex) {
+        int word = instIndex * words + (attrIndex >>> 6);
+        long bit = 1L << attrIndex;
+        if ((possible[word] & bit) == 0) {
+            return;
+        }
+
+        possible[word] &= ~bit;
+        if (--instPossibleNum[instIndex] == 0) {
+            --openInstancesNum;
+        }
+        --possibleNum;
+    }
+
+    /**
+     * Mark value (instIndex, attrIndex) as acquired: remove it from the pool
+     * and count it as known for the instance and the attribute.
+     */
+    public void acquire(int instIndex, int attrIndex) {
+        remove(instIndex, attrIndex);
+        acquired[instIndex * words + (attrIndex >>> 6)] |= 1L << attrIndex;
+
+        ++instNumQueries[instIndex];
+        ++attrNumQueries[attrIndex];
+        ++totalNumQueries;
+    }
+
+    public boolean isAcquired(int instIndex, int attrIndex) {
+        return (acquired[instIndex * words + (attrIndex >>> 6)] & (1L << attrIndex)) != 0;
+    }
+
+    /**
+     * Remove all queries from the pool, counters of known values are kept.
+     */
+    public void clear() {
+        Arrays.fill(possible, 0L);
+        Arrays.fill(instPossibleNum, 0);
+        possibleNum = 0;
+        openInstancesNum = 0;
+    }
+
+    /**
+     * Returns index of the first instance starting from 'fromInstIndex' with
+     * at least one possible query, or -1 if there is no such instance.
+     */
+    public int nextInstance(int fromInstIndex) {
+        for (int i = fromInstIndex; i < n; ++i) {
+            if (instPossibleNum[i] != 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns index of the first attribute starting from 'fromAttrIndex' which
+     * is a possible query of instance 'instIndex', or -1 if there is no such attribute.
+     */
+    public int nextAttr(int instIndex, int fromAttrIndex) {
+        if (fromAttrIndex >= m) {
+            return -1;
+        }
+
+        int base = instIndex * words;
+        int w = fromAttrIndex >>> 6;
+        long word = possible[base + w] & (-1L << fromAttrIndex);
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == words) {
+                return -1;
+            }
+            word = possible[base + w];
+        }
+    }
+
+    /**
+     * Returns all possible queries encoded as (instIndex * m + attrIndex),
+     * ordered by instance and then by attribute.
+     */
+    public int[] toCellArray() {
+        int[] cells = new int[possibleNum];
+        int k = 0;
+        for (int i = nextInstance(0); i >= 0; i = nextInstance(i + 1)) {
+            for (int j = nextAttr(i, 0); j >= 0; j = nextAttr(i, j + 1)) {
+                cells[k++] = i * m + j;
+            }
+        }
+
+        return cells;
+    }
+
+    public boolean isEmpty() {
+        return possibleNum == 0;
+    }
+
+    public int getPossibleQueriesNum() {
+        return possibleNum;
+    }
+
+    public int getInstPossibleQueriesNum(int instIndex) {
+        return instPossibleNum[instIndex];
+    }
+
+    public int getOpenInstancesNum() {
+        return openInstancesNum;
+    }
+
+    public int getInstNumQueries(int instIndex) {
+        return instNumQueries[instIndex];
+    }
+
+    public int getAttrNumQueries(int attrIndex) {
+        return attrNumQueries[attrIndex];
+    }
+
+    public int getTotalNumQueries() {
+        return totalNumQueries;
+    }
+
+    /**
+     * Write the pool, acquired values mask and counters.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(n);
+        out.writeInt(m);
+        for (int k = 0; k < possible.length; ++k) {
+            out.writeLong(possible[k]);
+            out.writeLong(acquired[k]);
+        }
+        for (int i = 0; i < n; ++i) {
+            out.writeInt(instNumQueries[i]);
+        }
+        for (int j = 0; j < m; ++j) {
+            out.writeInt(attrNumQueries[j]);
+        }
+    }
+
+    /**
+     * Replace the state with the one written by write(..), the state must be
+     * of the same size.
+     *
+     * @param in
+     * @throws IOException if the state is of another size
+     */
+    public void read(DataInput in) throws IOException {
+        int readN = in.readInt();
+        int readM = in.readInt();
+        if (readN != n || readM != m) {
+            throw new IOException(String.format("State of %sx%s queries can't be read into state of %sx%s queries",
+                    readN, readM, n, m));
+        }
+
+        for (int k = 0; k < possible.length; ++k) {
+            possible[k] = in.readLong();
+            acquired[k] = in.readLong();
+        }
+        possibleNum = 0;
+        openInstancesNum = 0;
+        for (int i = 0; i < n; ++i) {
+            int num = 0;
+            for (int w = 0; w < words; ++w) {
+                num += Long.bitCount(possible[i * words + w]);
+            }
+            instPossibleNum[i] = num;
+            possibleNum += num;
+            if (num != 0) {
+                ++openInstancesNum;
+            }
+        }
+
+        totalNumQueries = 0;
+        for (int i = 0; i < n; ++i) {
+            instNumQueries[i] = in.readInt();
+            totalNumQueries += instNumQueries[i];
+        }
+        for (int j = 0; j < m; ++j) {
+            attrNumQueries[j] = in.readInt();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.classifiers.trees.J48;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifiers which predict values of attributes (for P(value) of SEU
+ * methods), built lazily and kept until their training data change.
+ *
+ * Classifier of attribute j is trained on instances with known value of j,
+ * with j as class. Acquisition of (i, k) changes training data of k and of
+ * every attribute known in instance i (value of feature k of it changes),
+ * only these classifiers are dropped. At most 'capacity' classifiers are
+ * kept, the least recently used one is dropped first and is built again
+ * if it's needed. Only headers of training instances are kept.
+ */
+public class AttrClassifierCache {
+    private Instances instances; // discretized instances, read-only while classifiers are built
+    private final int m; // number of attributes, class excluded
+    private final int capacity;
+    private final Map<Integer, Entry> entries; // by attribute, in order of access, guarded by itself
+    private final Object[] locks; // by attribute, only one thread builds a classifier
+    private final AtomicLong buildsNum = new AtomicLong(); // number of built classifiers
+
+    /**
+     * Classifier of one attribute.
+     */
+    public static class Entry {
+        public final J48 classifier; // null if all known values of the attribute are 'knownValue'
+        public final int knownValue; // -1 if 'classifier' isn't null
+        private final Instances header; // header of training instances, class is the attribute
+
+        Entry(J48 classifier, int knownValue, Instances header) {
+            this.classifier = classifier;
+            this.knownValue = knownValue;
+            this.header = header;
+        }
+
+        /**
+         * @param inst instance of the cache's instances
+         * @return probabilities of values of the attribute for 'inst'
+         * @throws Exception
+         */
+        public double[] distributionForInstance(Instance inst) throws Exception {
+            Instance copy = new Instance(inst);
+            copy.setDataset(header);
+            return classifier.distributionForInstance(copy);
+        }
+    }
+
+    /**
+     * @param instances discretized instances
+     * @param m number of attributes, class excluded
+     * @param capacity max number of kept classifiers
+     */
+    public AttrClassifierCache(Instances instances, int m, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("'capacity' should be > 0");
+        }
+
+        this.instances = instances;
+        this.m = m;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > AttrClassifierCache.this.capacity;
+            }
+        };
+        this.locks = new Object[m];
+        for (int j = 0; j < m; ++j) {
+            locks[j] = new Object();
+        }
+    }
+
+    /**
+     * Drop all classifiers if 'instances' are another object than the
+     * current ones (e.g. they were discretized with new cut points).
+     */
+    public void setInstances(Instances instances) {
+        if (this.instances != instances) {
+            this.instances = instances;
+            clear();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drop classifiers whose training data changed after acquisition of the
+     * value, which must be already set to the instances.
+     *
+     * @param instIndex
+     * @param attrIndex
+     */
+    public void valueAcquired(int instIndex, int attrIndex) {
+        Instance inst = instances.instance(instIndex);
+        synchronized (entries) {
+            entries.remove(attrIndex);
+            for (int j = 0; j < m; ++j) {
+                if (!inst.isMissing(j)) {
+                    entries.remove(j);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param attrIndex
+     * @return classifier of the attribute, it is built if it isn't kept
+     * @throws Exception
+     */
+    public Entry get(int attrIndex) throws Exception {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(attrIndex);
+        }
+        if (entry != null) {
+            return entry;
+        }
+
+        synchronized (locks[attrIndex]) {
+            synchronized (entries) {
+                entry = entries.get(attrIndex);
+            }
+            if (entry == null) {
+                entry = build(attrIndex);
+                synchronized (entries) {
+                    entries.put(attrIndex, entry);
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Build classifiers of attributes of 'cells' which aren't kept, in
+     * parallel. If there are more such attributes than capacity, only
+     * the first ones are built, the rest are built when they are needed.
+     *
+     * @param cells queries encoded as (instIndex * m + attrIndex)
+     * @param scheduler
+     * @throws Exception
+     */
+    public void prepare(int[] cells, TaskScheduler scheduler) throws Exception {
+        boolean[] isNeeded = new boolean[m];
+        for (int cell : cells) {
+            isNeeded[cell % m] = true;
+        }
+        int[] attrs = new int[m];
+        int size = 0;
+        synchronized (entries) {
+            for (int j = 0; j < m && size < capacity; ++j) {
+                if (isNeeded[j] && !entries.containsKey(j)) {
+                    attrs[size++] = j; // as cell (0, j)
+                }
+            }
+        }
+        scheduler.runByAttribute(Arrays.copyOf(attrs, size), m, (instIndex, attrIndex) -> get(attrIndex));
+    }
+
+    /**
+     * Build a classifier based on instances with class-attribute and attribute
+     * at 'attrIndex' position swapped, to predict the value at 'attrIndex'
+     * position for an instance with missing value for this attribute.
+     */
+    private Entry build(int attrIndex) throws Exception {
+        int n = instances.numInstances();
+        int knownNum = n;
+        for (int i = 0; i < n; ++i) {
+            if (Instance.isMissingValue(instances.instance(i).value(attrIndex))) {
+                --knownNum;
+            }
+        }
+
+        Instances instancesForAttr = new Instances(instances, knownNum);
+        boolean isUnaryClassifier = true;
+        int classValue = -1;
+        for (int i = 0; i < n; ++i) {
+            if (!Instance.isMissingValue(instances.instance(i).value(attrIndex))) {
+                int value = (int) instances.instance(i).value(attrIndex);
+                if (classValue != -1 && classValue != value) {
+                    isUnaryClassifier = false;
+                } else {
+                    classValue = value;
+                }
+                instancesForAttr.add(instances.instance(i));
+            }
+        }
+        instancesForAttr.setClassIndex(attrIndex);
+        buildsNum.incrementAndGet();
+
+        Instances header = new Instances(instancesForAttr, 0);
+        if (isUnaryClassifier) {
+            return new Entry(null, classValue, header);
+        }
+        return new Entry(DatasetFactory.staticMakeClassifier(instancesForAttr), -1, header);
+    }
+
+    /**
+     * @return number of classifiers built so far
+     */
+    public long getBuildsNum() {
+        return buildsNum.get();
+    }
+}
@@ -0,0 +1,277 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+/**
+ * Possible queries of AFABandit ordered so that the best UCB scores are
+ * found without scoring of every query, kept up to date between steps.
+ *
+ * Score of query (i, j) is instTerm(i) + attrTerm(j) + sqrt(E / (count(i) +
+ * count(j))), where E = 2 * ln(total number of known values) and counts are
+ * numbers of known values. Open instances are kept sorted by instance term,
+ * attributes with possible queries by attribute term, and numbers of both
+ * by count, so the smallest counts are known at once. Only instances and
+ * attributes whose terms or counts changed are moved between steps (see
+ * SortedIndex). Counts only grow and queries are never added back, so the
+ * index must be made again if the state is restored.
+ *
+ * Lazy selection: attributes with possible queries are kept sorted by
+ * cached upper bound attrTerm(j) + sqrt(E' / (c + count(j))), where E' >= E
+ * is E of twice as many known values as there were when the bounds were
+ * cached and c is the smallest count of an open instance then. Both only
+ * move the bound up, so cached bounds stay valid until the number of known
+ * values doubles, only bounds of changed attributes are computed again.
+ * Attributes are opened in order of cached bounds plus the best instance
+ * term. Every open attribute has a cursor in the instance order, its
+ * exact bound is the score with the instance term of the cursor and the
+ * smallest count of an open instance. Entry with the highest bound is
+ * taken until the worst kept query is strictly better than all bounds.
+ *
+ * Threshold selection: pair (r, c) of ranks of instance and attribute
+ * orders is bounded by the score with their terms and the smallest counts,
+ * which bounds all the pairs (>= r, >= c). Pairs are visited best bound
+ * first: visiting (r, c) adds (r, c + 1) and, for c = 0, also (r + 1, 0) to
+ * the frontier, so only pairs near the corner of the best terms are touched.
+ */
+public class BanditQueryIndex {
+    private static final double SLACK = 1e-9; // relative slack of cached bounds, much more than rounding errors
+    private static final long ATTR_ENTRY = 1L << 62; // frontier entry of rank of 'lazyAttrs', cursor otherwise
+
+    private final AcquisitionState state;
+    private final int m; // number of attributes
+
+    private final SortedIndex insts; // open instances by instance term
+    private final int[] instCountNums; // number of open instances by number of known values
+    private int minInstCount; // the smallest number of known values of an open instance
+
+    private final double[] attrTerms; // by attribute
+    private final int[] attrPossibleNums; // number of possible queries by attribute
+    private final SortedIndex attrs; // attributes with possible queries by attribute term
+    private final int[] attrCountNums; // number of attributes of 'attrs' by number of known values
+    private int minAttrCount; // the smallest number of known values of an attribute of 'attrs'
+
+    private final SortedIndex lazyAttrs; // attributes with possible queries by cached bound
+    private double cachedNumerator = Double.NaN; // E' of cached bounds, NaN if they aren't computed yet
+    private int cachedInstCount; // c of cached bounds
+
+    private final FrontierHeap frontier = new FrontierHeap();
+
+    /**
+     * All terms are 0 until they are set.
+     *
+     * @param state
+     */
+    public BanditQueryIndex(AcquisitionState state) {
+        this.state = state;
+        int n = state.getInstanceNum();
+        m = state.getAttributesNum();
+
+        insts = new SortedIndex(n);
+        instCountNums = new int[m + 1];
+        attrTerms = new double[m];
+        attrPossibleNums = new int[m];
+        attrs = new SortedIndex(m);
+        attrCountNums = new int[n + 1];
+        lazyAttrs = new SortedIndex(m);
+
+        for (int i = state.nextInstance(0); i >= 0; i = state.nextInstance(i + 1)) {
+            insts.add(i, 0.0);
+            ++instCountNums[state.getInstNumQueries(i)];
+            for (int j = state.nextAttr(i, 0); j >= 0; j = state.nextAttr(i, j + 1)) {
+                ++attrPossibleNums[j];
+            }
+        }
+        for (int j = 0; j < m; ++j) {
+            if (attrPossibleNums[j] > 0) {
+                attrs.add(j, 0.0);
+                ++attrCountNums[state.getAttrNumQueries(j)];
+                lazyAttrs.add(j, 0.0);
+            }
+        }
+    }
+
+    public void setInstTerm(int instIndex, double term) {
+        insts.setKey(instIndex, term);
+    }
+
+    public void setAttrTerm(int attrIndex, double term) {
+        if (Double.compare(attrTerms[attrIndex], term) != 0) {
+            attrTerms[attrIndex] = term;
+            attrs.setKey(attrIndex, term);
+            lazyAttrs.setKey(attrIndex, getCachedBound(attrIndex));
+        }
+    }
+
+    /**
+     * Called after the query was acquired in the state.
+     *
+     * @param instIndex
+     * @param attrIndex
+     */
+    public void queryAcquired(int instIndex, int attrIndex) {
+        int instCount = state.getInstNumQueries(instIndex);
+        --instCountNums[instCount - 1];
+        if (state.getInstPossibleQueriesNum(instIndex) == 0) {
+            insts.remove(instIndex);
+        } else {
+            ++instCountNums[instCount];
+        }
+
+        int attrCount = state.getAttrNumQueries(attrIndex);
+        --attrCountNums[attrCount - 1];
+        if (--attrPossibleNums[attrIndex] == 0) {
+            attrs.remove(attrIndex);
+            lazyAttrs.remove(attrIndex);
+        } else {
+            ++attrCountNums[attrCount];
+            lazyAttrs.setKey(attrIndex, getCachedBound(attrIndex));
+        }
+    }
+
+    private double getCachedBound(int attrIndex) {
+        int count = cachedInstCount + state.getAttrNumQueries(attrIndex);
+        return attrTerms[attrIndex] + Math.sqrt(cachedNumerator / count);
+    }
+
+    /**
+     * Apply changes of instance terms and of counts.
+     */
+    private void refresh() {
+        // counts only grow, so the smallest ones do too
+        while (minInstCount < m && instCountNums[minInstCount] == 0) {
+            ++minInstCount;
+        }
+        while (minAttrCount < attrCountNums.length - 1 && attrCountNums[minAttrCount] == 0) {
+            ++minAttrCount;
+        }
+        insts.refresh();
+    }
+
+    private double getScore(int instIndex, int attrIndex, double explorationNumerator) {
+        // same as AFABandit.performStep(..) computes it
+        int count = state.getInstNumQueries(instIndex) + state.getAttrNumQueries(attrIndex);
+        return insts.getKey(instIndex) + attrTerms[attrIndex] + Math.sqrt(explorationNumerator / count);
+    }
+
+    /**
+     * Fill 'top' with the same queries as scoring of every possible query does.
+     *
+     * @param top empty top with capacity equal to the number of queries to select
+     * @param explorationNumerator 2 * ln(total number of known values), > 0
+     */
+    public void selectLazily(BoundedTopK top, double explorationNumerator) {
+        refresh();
+        if (!(explorationNumerator <= cachedNumerator)) {
+            cachedNumerator = explorationNumerator + 2 * Math.log(2);
+            cachedInstCount = minInstCount;
+            for (int j = 0; j < m; ++j) {
+                lazyAttrs.setKey(j, getCachedBound(j));
+            }
+        }
+        lazyAttrs.refresh();
+        if (insts.size() == 0 || lazyAttrs.size() == 0) {
+            return;
+        }
+
+        double bestInstTerm = insts.getKey(insts.get(0));
+        frontier.clear();
+        frontier.push(getAttrRankBound(0, bestInstTerm), ATTR_ENTRY);
+        while (!frontier.isEmpty()) {
+            if (top.isFull() && frontier.maxBound() < top.minScore()) {
+                break; // no query left can be kept
+            }
+
+            long entry = frontier.poll();
+            if ((entry & ATTR_ENTRY) != 0) {
+                int rank = (int) entry;
+                pushCursor(lazyAttrs.get(rank), 0, top, explorationNumerator);
+                if (rank + 1 < lazyAttrs.size()) {
+                    frontier.push(getAttrRankBound(rank + 1, bestInstTerm), ATTR_ENTRY | (rank + 1));
+                }
+            } else {
+                int attrIndex = (int) (entry >>> 32);
+                int instRank = (int) entry;
+                int instIndex = insts.get(instRank);
+                top.offer(getScore(instIndex, attrIndex, explorationNumerator), instIndex * m + attrIndex);
+                pushCursor(attrIndex, instRank + 1, top, explorationNumerator);
+            }
+        }
+    }
+
+    /**
+     * Bound of scores of attributes of rank >= 'rank' of 'lazyAttrs', with
+     * slack for rounding, since cached bounds are summed in another order
+     * than scores.
+     */
+    private double getAttrRankBound(int rank, double bestInstTerm) {
+        double cachedBound = lazyAttrs.getKey(lazyAttrs.get(rank));
+        return bestInstTerm + cachedBound + SLACK * (1.0 + Math.abs(bestInstTerm) + Math.abs(cachedBound));
+    }
+
+    /**
+     * Push cursor of the attribute at the first possible query from instance
+     * rank 'instRank', unless no query of the attribute left can be kept.
+     */
+    private void pushCursor(int attrIndex, int instRank, BoundedTopK top, double explorationNumerator) {
+        double attrTerm = attrTerms[attrIndex];
+        double exploration = Math.sqrt(explorationNumerator / (minInstCount + state.getAttrNumQueries(attrIndex)));
+        for (int r = instRank; r < insts.size(); ++r) {
+            int instIndex = insts.get(r);
+            // summed in the same order as the score, so it isn't less than scores of ranks >= r
+            double bound = insts.getKey(instIndex) + attrTerm + exploration;
+            if (top.isFull() && bound < top.minScore()) {
+                return;
+            }
+            if (state.isPossible(instIndex, attrIndex)) {
+                frontier.push(bound, ((long) attrIndex << 32) | r);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fill 'top' with the same queries as scoring of every possible query does.
+     *
+     * @param top empty top with capacity equal to the number of queries to select
+     * @param explorationNumerator 2 * ln(total number of known values), > 0
+     */
+    public void selectByThreshold(BoundedTopK top, double explorationNumerator) {
+        refresh();
+        attrs.refresh();
+        if (insts.size() == 0 || attrs.size() == 0) {
+            return;
+        }
+
+        double exploration = Math.sqrt(explorationNumerator / (minInstCount + minAttrCount));
+        frontier.clear();
+        frontier.push(getPairBound(0, 0, exploration), 0L);
+        while (!frontier.isEmpty()) {
+            if (top.isFull() && frontier.maxBound() < top.minScore()) {
+                break; // no query left can be kept
+            }
+
+            long entry = frontier.poll();
+            int instRank = (int) (entry >>> 32);
+            int attrRank = (int) entry;
+            int instIndex = insts.get(instRank);
+            int attrIndex = attrs.get(attrRank);
+            if (state.isPossible(instIndex, attrIndex)) {
+                top.offer(getScore(instIndex, attrIndex, explorationNumerator), instIndex * m + attrIndex);
+            }
+
+            if (attrRank + 1 < attrs.size()) {
+                frontier.push(getPairBound(instRank, attrRank + 1, exploration),
+                        ((long) instRank << 32) | (attrRank + 1));
+            }
+            if (attrRank == 0 && instRank + 1 < insts.size()) {
+                frontier.push(getPairBound(instRank + 1, 0, exploration), (long) (instRank + 1) << 32);
+            }
+        }
+    }
+
+    /**
+     * Bound of scores of pairs of ranks (>= instRank, >= attrRank), summed in
+     * the same order as the score.
+     */
+    private double getPairBound(int instRank, int attrRank, double exploration) {
+        return insts.getKey(insts.get(instRank)) + attrTerms[attrs.get(attrRank)] + exploration;
+    }
+}
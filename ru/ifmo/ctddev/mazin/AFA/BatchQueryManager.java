@@ -0,0 +1,18 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Oracle which answers a batch of queries in one request. AFAMethod uses
+ * it instead of getValue(..) for each query if its QueryManager is one.
+ */
+public interface BatchQueryManager extends QueryManager {
+    /**
+     * Request values of queries, doesn't wait for them.
+     *
+     * @param queries pairs (instIndex, attrIndex)
+     * @return values of queries in the same order
+     */
+    CompletableFuture<double[]> getValues(List<Pair<Integer, Integer>> queries);
+}
@@ -0,0 +1,137 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+/**
+ * Keeps 'capacity' best (score, id) entries offered to it.
+ *
+ * Entry is better if its score is higher, equal scores are ordered by
+ * smaller id, so the result is the same as the first 'capacity' entries
+ * of a stable descending sort of entries offered in order of id.
+ * Entries are held in a min-heap on two primitive arrays, the worst kept
+ * entry is in the root.
+ */
+public class BoundedTopK {
+    private double[] scores;
+    private int[] ids;
+    private int capacity;
+    private int size;
+
+    public BoundedTopK(int capacity) {
+        scores = new double[Math.max(capacity, 1)];
+        ids = new int[Math.max(capacity, 1)];
+        this.capacity = capacity;
+    }
+
+    /**
+     * Remove all entries and set new capacity, arrays are reused when possible.
+     */
+    public void reset(int capacity) {
+        if (capacity > scores.length) {
+            scores = new double[capacity];
+            ids = new int[capacity];
+        }
+        this.capacity = capacity;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Score of the worst kept entry, it is meaningful only if 'isFull()'.
+     */
+    public double minScore() {
+        return scores[0];
+    }
+
+    public int minId() {
+        return ids[0];
+    }
+
+    /**
+     * Offer entry, returns true if it is kept.
+     */
+    public boolean offer(double score, int id) {
+        if (size < capacity) {
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!isBetter(scores[parent], ids[parent], score, id)) {
+                    break;
+                }
+                scores[pos] = scores[parent];
+                ids[pos] = ids[parent];
+                pos = parent;
+            }
+            scores[pos] = score;
+            ids[pos] = id;
+            return true;
+        }
+
+        if (capacity == 0 || !isBetter(score, id, scores[0], ids[0])) {
+            return false;
+        }
+        siftDown(score, id);
+        return true;
+    }
+
+    /**
+     * Offer all entries of 'other'.
+     */
+    public void merge(BoundedTopK other) {
+        for (int k = 0; k < other.size; ++k) {
+            offer(other.scores[k], other.ids[k]);
+        }
+    }
+
+    /**
+     * Returns ids of kept entries from the best to the worst and removes them.
+     */
+    public int[] pollSortedIds() {
+        int[] res = new int[size];
+        while (size > 0) {
+            res[size - 1] = ids[0];
+            --size;
+            if (size > 0) {
+                siftDown(scores[size], ids[size]);
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Put (score, id) into the root and restore the heap.
+     */
+    private void siftDown(double score, int id) {
+        int pos = 0;
+        int half = size >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < size && isBetter(scores[child], ids[child], scores[right], ids[right])) {
+                child = right;
+            }
+            if (!isBetter(score, id, scores[child], ids[child])) {
+                break;
+            }
+            scores[pos] = scores[child];
+            ids[pos] = ids[child];
+            pos = child;
+        }
+        scores[pos] = score;
+        ids[pos] = id;
+    }
+
+    private static boolean isBetter(double score1, int id1, double score2, int id2) {
+        return score1 > score2 || (score1 == score2 && id1 < id2);
+    }
+}
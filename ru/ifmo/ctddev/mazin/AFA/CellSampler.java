@@ -0,0 +1,96 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Uniform samples of distinct cells of a grid by Floyd's algorithm: for
+ * j = size - k, ..., size - 1 a random t in [0, j] is taken, or j itself
+ * if t is already taken. Every k-subset is equally likely, only k random
+ * numbers are drawn and no list of all cells is made, so the same 'random'
+ * gives the same sample.
+ *
+ * Taken cells are kept in an open-addressing hash set of ints of about 2k
+ * slots, so a sample takes O(k) memory and O(k log k) time (for sorting)
+ * whatever the size of the grid is.
+ */
+public class CellSampler {
+    private static final int EMPTY = -1; // free slot of the hash set, cells are >= 0
+
+    private CellSampler() {
+    }
+
+    /**
+     * @param size number of cells, e.g. (n * m) for cells (instIndex * m + attrIndex)
+     * @param k number of cells to take, in [0, size]
+     * @param random
+     * @return taken cells in increasing order
+     */
+    public static int[] sample(int size, int k, Random random) {
+        if (k < 0 || k > size) {
+            throw new IllegalArgumentException("'k' should be in [0, size]");
+        }
+
+        int[] slots = new int[Integer.highestOneBit(Math.max(1, k)) * 4]; // power of two, at most half is used
+        Arrays.fill(slots, EMPTY);
+        int[] res = new int[k];
+        int num = 0;
+        for (int j = size - k; j < size; ++j) {
+            int t = random.nextInt(j + 1);
+            if (!add(slots, t)) {
+                t = j;
+                add(slots, j); // j is new, since all taken cells are < j
+            }
+            res[num++] = t;
+        }
+        Arrays.sort(res);
+        return res;
+    }
+
+    /**
+     * @return false if 'cell' is already in 'slots'
+     */
+    private static boolean add(int[] slots, int cell) {
+        int mask = slots.length - 1;
+        int hash = cell * 0x9E3779B9;
+        for (int slot = (hash ^ hash >>> 16) & mask; ; slot = (slot + 1) & mask) {
+            if (slots[slot] == cell) {
+                return false;
+            }
+            if (slots[slot] == EMPTY) {
+                slots[slot] = cell;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Dense mask of cells, for callers which need random access to them.
+     *
+     * @param cells
+     * @return set of 'cells'
+     */
+    public static BitSet toMask(int[] cells) {
+        BitSet res = new BitSet(cells.length == 0 ? 0 : cells[cells.length - 1] + 1);
+        for (int cell : cells) {
+            res.set(cell);
+        }
+        return res;
+    }
+
+    /**
+     * Number of cells of an n x m grid, checked to fit cell encoding by int.
+     *
+     * @param n
+     * @param m
+     * @return n * m
+     */
+    public static int getGridSize(int n, int m) {
+        long size = (long) n * m;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid " + n + " x " + m + " has too many cells");
+        }
+        return (int) size;
+    }
+}
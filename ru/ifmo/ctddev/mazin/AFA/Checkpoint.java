@@ -0,0 +1,116 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Files of the learning curve of a fold: the finished curve and the
+ * checkpoint of an unfinished one.
+ *
+ * Checkpoint is a binary snapshot of the curve so far and of the state of
+ * the AFA method (see AFAMethod.writeState(..)) written after every step.
+ * All files are written into a temporary file which is then atomically
+ * renamed, so a file is either complete or absent even if the process is
+ * killed while writing it.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x41464143; // "AFAC"
+    private static final int VERSION = 2;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Write checkpoint of a fold.
+     *
+     * @param file
+     * @param curve pairs (number of known values, accuracy) of the done steps
+     * @param method
+     * @throws IOException
+     */
+    public static void write(File file, List<Pair<Integer, Double>> curve, AFAMethod method) throws IOException {
+        File tmpFile = getTmpFile(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(curve.size());
+            for (Pair<Integer, Double> pair : curve) {
+                out.writeInt(pair.first);
+                out.writeDouble(pair.second);
+            }
+            method.writeState(out);
+        }
+        moveAtomically(tmpFile, file);
+    }
+
+    /**
+     * Restore state of 'method' from checkpoint.
+     *
+     * @param file
+     * @param method method made from the same instances as the one of the checkpoint
+     * @return curve of the done steps, or null if there is no checkpoint
+     * @throws IOException if the checkpoint is damaged or of another version
+     */
+    public static List<Pair<Integer, Double>> read(File file, AFAMethod method) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Checkpoint %s has version %s, expected %s", file, version, VERSION));
+            }
+
+            int size = in.readInt();
+            List<Pair<Integer, Double>> curve = new ArrayList<>(size);
+            for (int k = 0; k < size; ++k) {
+                int num = in.readInt();
+                curve.add(new Pair<>(num, in.readDouble()));
+            }
+            method.readState(in);
+
+            return curve;
+        }
+    }
+
+    /**
+     * Curve file: line "number of known values,accuracy" for each step.
+     */
+    public static void writeCurve(List<Pair<Integer, Double>> curve, File file) throws IOException {
+        File tmpFile = getTmpFile(file);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFile))) {
+            for (Pair<Integer, Double> pair : curve) {
+                bw.write(pair.first + "," + pair.second);
+                bw.newLine();
+            }
+        }
+        moveAtomically(tmpFile, file);
+    }
+
+    public static List<Pair<Integer, Double>> readCurve(File file) throws IOException {
+        List<Pair<Integer, Double>> curve = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                curve.add(new Pair<>(Integer.parseInt(parts[0]), Double.parseDouble(parts[1])));
+            }
+        }
+        return curve;
+    }
+
+    private static File getTmpFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static void moveAtomically(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,429 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.lang.reflect.Field;
+
+/**
+ * Built J48 tree flattened into arrays for fast prediction.
+ *
+ * Nodes are numbered in depth-first order, sons of a node occupy a
+ * contiguous range of child slots. Every leaf keeps its class probabilities
+ * with and without Laplace correction, an empty son keeps probabilities of
+ * its bag in the parent distribution (this is what J48 uses for it).
+ * Instances with a missing split value are routed to all non-empty sons
+ * with the weights of the split distribution.
+ *
+ * Arithmetic is done in the same order as in ClassifierTree, so predictions
+ * and distributions are exactly the same as J48.classifyInstance(..) and
+ * J48.distributionForInstance(..). Object is immutable and can be shared
+ * between threads.
+ */
+public class CompiledJ48 {
+    private static final Field ROOT_FIELD = getField(J48.class, "m_root");
+    private static final Field LOCAL_MODEL_FIELD = getField(ClassifierTree.class, "m_localModel");
+    private static final Field SONS_FIELD = getField(ClassifierTree.class, "m_sons");
+    private static final Field IS_LEAF_FIELD = getField(ClassifierTree.class, "m_isLeaf");
+    private static final Field IS_EMPTY_FIELD = getField(ClassifierTree.class, "m_isEmpty");
+    private static final Field SPLIT_POINT_FIELD = getField(C45Split.class, "m_splitPoint");
+
+    private final int numClasses;
+    private final boolean useLaplace;
+    private final int maxDepth;
+
+    private final int[] splitAttr; // attribute of node split, -1 for leaf
+    private final double[] splitPoint; // split point for numeric attribute
+    private final boolean[] isEmpty; // node is an empty leaf
+    private final int[] firstSlot; // first child slot of node
+    private final int[] numSons; // number of sons of node
+
+    private final int[] sons; // node in child slot
+    private final double[] sonWeights; // weight of child slot for instance with missing split value
+
+    private final double[] probs; // [node * numClasses + class] class probability of leaf
+    private final double[] laplaceProbs; // [node * numClasses + class] Laplace class probability of leaf
+
+    private CompiledJ48(int numClasses, boolean useLaplace, int numNodes, int maxDepth) {
+        this.numClasses = numClasses;
+        this.useLaplace = useLaplace;
+        this.maxDepth = maxDepth;
+
+        splitAttr = new int[numNodes];
+        splitPoint = new double[numNodes];
+        isEmpty = new boolean[numNodes];
+        firstSlot = new int[numNodes];
+        numSons = new int[numNodes];
+
+        sons = new int[Math.max(numNodes - 1, 0)];
+        sonWeights = new double[Math.max(numNodes - 1, 0)];
+
+        probs = new double[numNodes * numClasses];
+        laplaceProbs = new double[numNodes * numClasses];
+    }
+
+    /**
+     * Compile built J48 classifier.
+     *
+     * @param classifier built J48 with multiway splits
+     * @return
+     * @throws Exception if tree has split models other than C45Split
+     */
+    public static CompiledJ48 compile(J48 classifier) throws Exception {
+        ClassifierTree root = (ClassifierTree) ROOT_FIELD.get(classifier);
+        if (root == null) {
+            throw new IllegalArgumentException("The classifier isn't built");
+        }
+
+        return compile(new WekaNode(root), classifier.getUseLaplace());
+    }
+
+    /**
+     * Compile tree given by its root node.
+     *
+     * @param root
+     * @param useLaplace whether distributions should use Laplace correction
+     * @return
+     * @throws Exception if tree has split models other than C45Split
+     */
+    static CompiledJ48 compile(Node root, boolean useLaplace) throws Exception {
+        int numClasses = root.getDistribution().numClasses();
+        CompiledJ48 res = new CompiledJ48(numClasses, useLaplace, countNodes(root), getDepth(root));
+        res.fill(root, null, -1, 0, 0);
+        return res;
+    }
+
+    public int numClasses() {
+        return numClasses;
+    }
+
+    public int numNodes() {
+        return splitAttr.length;
+    }
+
+    /**
+     * Returns the same as J48.classifyInstance(..) for each instance of 'data'.
+     */
+    public double[] predict(Instances data) {
+        boolean[] isNominal = getNominalAttrs(data);
+        double[] buffer = new double[(maxDepth + 1) * numClasses];
+        double[] res = new double[data.numInstances()];
+        for (int i = 0; i < res.length; ++i) {
+            res[i] = classify(data.instance(i), isNominal, buffer);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the same as J48.classifyInstance(..) for each instance of 'data'.
+     */
+    public double[] predict(InstancesOverlay data) {
+        boolean[] isNominal = getNominalAttrs(data.getBase());
+        double[] buffer = new double[(maxDepth + 1) * numClasses];
+        double[] res = new double[data.numInstances()];
+        for (int i = 0; i < res.length; ++i) {
+            res[i] = classify(data.instance(i), isNominal, buffer);
+        }
+        return res;
+    }
+
+    /**
+     * Returns number of instances rows[from], .., rows[to - 1] of 'data'
+     * which are classified correctly.
+     */
+    public int countCorrect(InstancesOverlay data, int[] rows, int from, int to) {
+        boolean[] isNominal = getNominalAttrs(data.getBase());
+        double[] buffer = new double[(maxDepth + 1) * numClasses];
+        int res = 0;
+        for (int k = from; k < to; ++k) {
+            Instance inst = data.instance(rows[k]);
+            if (inst.classValue() == (int) classify(inst, isNominal, buffer)) {
+                ++res;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the same as J48.distributionForInstance(..) for each instance of 'data'.
+     */
+    public double[][] distributions(Instances data) {
+        boolean[] isNominal = getNominalAttrs(data);
+        double[] buffer = new double[(maxDepth + 1) * numClasses];
+        double[][] res = new double[data.numInstances()][];
+        for (int i = 0; i < res.length; ++i) {
+            res[i] = new double[numClasses];
+            distribution(data.instance(i), isNominal, useLaplace ? laplaceProbs : probs, buffer);
+            System.arraycopy(buffer, 0, res[i], 0, numClasses);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the same as J48.classifyInstance(..).
+     */
+    public double classifyInstance(Instance inst) {
+        return classify(inst, getNominalAttrs(inst.dataset()), new double[(maxDepth + 1) * numClasses]);
+    }
+
+    /**
+     * Returns the same as J48.distributionForInstance(..).
+     */
+    public double[] distributionForInstance(Instance inst) {
+        double[] buffer = new double[(maxDepth + 1) * numClasses];
+        distribution(inst, getNominalAttrs(inst.dataset()), useLaplace ? laplaceProbs : probs, buffer);
+        double[] res = new double[numClasses];
+        System.arraycopy(buffer, 0, res, 0, numClasses);
+        return res;
+    }
+
+    /**
+     * Class with maximum probability (without Laplace correction, as
+     * ClassifierTree.classifyInstance(..) does).
+     */
+    private double classify(Instance inst, boolean[] isNominal, double[] buffer) {
+        distribution(inst, isNominal, probs, buffer);
+
+        double maxProb = -1;
+        int maxIndex = 0;
+        for (int j = 0; j < numClasses; j++) {
+            if (Utils.gr(buffer[j], maxProb)) {
+                maxIndex = j;
+                maxProb = buffer[j];
+            }
+        }
+        return maxIndex;
+    }
+
+    /**
+     * Write class distribution of instance into first 'numClasses' cells of 'buffer'.
+     */
+    private void distribution(Instance inst, boolean[] isNominal, double[] table, double[] buffer) {
+        distribution(0, inst, 1, isNominal, table, buffer, 0);
+    }
+
+    private void distribution(int node,
+                              Instance inst,
+                              double weight,
+                              boolean[] isNominal,
+                              double[] table,
+                              double[] buffer,
+                              int offset) {
+        while (true) {
+            if (splitAttr[node] < 0) {
+                int tableOffset = node * numClasses;
+                for (int c = 0; c < numClasses; ++c) {
+                    buffer[offset + c] = weight * table[tableOffset + c];
+                }
+                return;
+            }
+
+            int subset = whichSubset(node, inst, isNominal);
+            if (subset == -1) {
+                for (int c = 0; c < numClasses; ++c) {
+                    buffer[offset + c] = 0;
+                }
+                int sonOffset = offset + numClasses;
+                for (int slot = firstSlot[node]; slot < firstSlot[node] + numSons[node]; ++slot) {
+                    if (!isEmpty[sons[slot]]) {
+                        distribution(sons[slot], inst, sonWeights[slot] * weight, isNominal, table, buffer, sonOffset);
+                        for (int c = 0; c < numClasses; ++c) {
+                            buffer[offset + c] += buffer[sonOffset + c];
+                        }
+                    }
+                }
+                return;
+            }
+
+            // empty son is a leaf with probabilities of the bag, so it is handled as any other leaf
+            node = sons[firstSlot[node] + subset];
+        }
+    }
+
+    private int whichSubset(int node, Instance inst, boolean[] isNominal) {
+        int attr = splitAttr[node];
+        if (inst.isMissing(attr)) {
+            return -1;
+        } else if (isNominal[attr]) {
+            return (int) inst.value(attr);
+        } else {
+            return Utils.smOrEq(inst.value(attr), splitPoint[node]) ? 0 : 1;
+        }
+    }
+
+    private static boolean[] getNominalAttrs(Instances data) {
+        boolean[] res = new boolean[data.numAttributes()];
+        for (int i = 0; i < res.length; ++i) {
+            res[i] = data.attribute(i).isNominal();
+        }
+        return res;
+    }
+
+    /**
+     * Fill node 'node' and its subtree.
+     *
+     * @param tree
+     * @param parentDist distribution of parent split, null for root
+     * @param bag index of tree in parent split
+     * @param node
+     * @param slot next free child slot
+     * @throws Exception
+     */
+    private void fill(Node tree, Distribution parentDist, int bag, int node, int slot) throws Exception {
+        Distribution dist = tree.getDistribution();
+        isEmpty[node] = tree.isEmpty();
+
+        if (tree.isLeaf()) {
+            splitAttr[node] = -1;
+            int tableOffset = node * numClasses;
+            for (int c = 0; c < numClasses; ++c) {
+                if (isEmpty[node] && parentDist != null) {
+                    probs[tableOffset + c] = parentDist.prob(c, bag);
+                    laplaceProbs[tableOffset + c] = parentDist.laplaceProb(c, bag);
+                } else {
+                    probs[tableOffset + c] = dist.prob(c);
+                    laplaceProbs[tableOffset + c] = dist.laplaceProb(c);
+                }
+            }
+            return;
+        }
+
+        ClassifierSplitModel model = tree.getSplitModel();
+        if (!(model instanceof C45Split)) {
+            throw new IllegalArgumentException("Only multiway C45Split splits are supported, found "
+                    + model.getClass().getSimpleName());
+        }
+        C45Split split = (C45Split) model;
+        Node[] treeSons = tree.getSons();
+
+        splitAttr[node] = split.attIndex();
+        splitPoint[node] = SPLIT_POINT_FIELD.getDouble(split);
+        firstSlot[node] = slot;
+        numSons[node] = treeSons.length;
+
+        int nextNode = node + 1;
+        int nextSlot = slot + treeSons.length;
+        for (int k = 0; k < treeSons.length; ++k) {
+            sonWeights[slot + k] = dist.perBag(k) / dist.total();
+            sons[slot + k] = nextNode;
+            int sonNodes = countNodes(treeSons[k]);
+            fill(treeSons[k], dist, k, nextNode, nextSlot);
+            nextNode += sonNodes;
+            nextSlot += sonNodes - 1;
+        }
+    }
+
+    private static int countNodes(Node tree) {
+        int res = 1;
+        if (!tree.isLeaf()) {
+            for (Node son : tree.getSons()) {
+                res += countNodes(son);
+            }
+        }
+        return res;
+    }
+
+    private static int getDepth(Node tree) {
+        int res = 0;
+        if (!tree.isLeaf()) {
+            for (Node son : tree.getSons()) {
+                res = Math.max(res, getDepth(son) + 1);
+            }
+        }
+        return res;
+    }
+
+    private static Field getField(Class<?> cls, String name) {
+        try {
+            Field field = cls.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unsupported Weka version: no field " + name + " in " + cls.getName(), e);
+        }
+    }
+
+    /**
+     * Node of a built tree.
+     */
+    interface Node {
+        boolean isLeaf();
+
+        boolean isEmpty();
+
+        /**
+         * Split model of inner node.
+         */
+        ClassifierSplitModel getSplitModel();
+
+        /**
+         * Split distribution of inner node or class distribution of leaf.
+         */
+        Distribution getDistribution();
+
+        Node[] getSons();
+    }
+
+    /**
+     * Node of Weka ClassifierTree, fields are read by reflection.
+     */
+    private static class WekaNode implements Node {
+        private final ClassifierTree tree;
+
+        WekaNode(ClassifierTree tree) {
+            this.tree = tree;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return getBoolean(IS_LEAF_FIELD);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return getBoolean(IS_EMPTY_FIELD);
+        }
+
+        @Override
+        public ClassifierSplitModel getSplitModel() {
+            return (ClassifierSplitModel) get(LOCAL_MODEL_FIELD);
+        }
+
+        @Override
+        public Distribution getDistribution() {
+            return getSplitModel().distribution();
+        }
+
+        @Override
+        public Node[] getSons() {
+            ClassifierTree[] treeSons = (ClassifierTree[]) get(SONS_FIELD);
+            Node[] res = new Node[treeSons.length];
+            for (int k = 0; k < res.length; ++k) {
+                res[k] = new WekaNode(treeSons[k]);
+            }
+            return res;
+        }
+
+        private Object get(Field field) {
+            try {
+                return field.get(tree);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private boolean getBoolean(Field field) {
+            try {
+                return field.getBoolean(tree);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package ru.ifmo.ctddev.mazin.AFA;
 
 import weka.core.Instances;
-import weka.core.converters.ConverterUtils;
 
 import java.io.File;
 
@@ -22,9 +21,7 @@ public class Dataset {
 
     public Instances getInstances() {
         try {
-            ConverterUtils.DataSource dataSource = new ConverterUtils.DataSource(file.getPath());
-
-            Instances instances = dataSource.getDataSet();
+            Instances instances = DatasetCache.getInstances(file);
 
 //            Filter filter = new Normalize();
 //            filter.setInputFormat(instances);
@@ -0,0 +1,229 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed datasets.
+ *
+ * The first load of a dataset file parses it and writes a binary snapshot
+ * (attributes and packed matrix of weights and values) next to it, later
+ * loads (also in other JVMs) read the snapshot instead of parsing. Snapshot
+ * keeps size and modification time of the source file and is rewritten when
+ * they change. Parsed datasets are also kept in memory, every call returns
+ * a copy which may be changed freely.
+ *
+ * Only datasets with numeric and nominal attributes get snapshots, other
+ * ones are parsed every time they aren't in memory.
+ */
+public class DatasetCache {
+    public static final String SNAPSHOT_EXT = ".snapshot";
+
+    private static final int MAGIC = 0x41464144; // "AFAD"
+    private static final int VERSION = 1;
+
+    private static final byte NUMERIC = 0;
+    private static final byte NOMINAL = 1;
+
+    private static final Map<String, CachedInstances> cache = new HashMap<>(); // by absolute path of source file
+
+    private DatasetCache() {
+    }
+
+    private static class CachedInstances {
+        final long length;
+        final long lastModified;
+        final Instances instances;
+
+        CachedInstances(long length, long lastModified, Instances instances) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.instances = instances;
+        }
+    }
+
+    /**
+     * Returns copy of instances of the dataset file.
+     *
+     * @param file ARFF file
+     * @return
+     * @throws Exception if the file can't be parsed
+     */
+    public static Instances getInstances(File file) throws Exception {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        CachedInstances cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached == null || cached.length != length || cached.lastModified != lastModified) {
+            cached = new CachedInstances(length, lastModified, load(file, length, lastModified));
+            synchronized (cache) {
+                cache.put(key, cached);
+            }
+        }
+
+        return new Instances(cached.instances);
+    }
+
+    public static File getSnapshotFile(File file) {
+        return new File(file.getPath() + SNAPSHOT_EXT);
+    }
+
+    private static Instances load(File file, long length, long lastModified) throws Exception {
+        File snapshotFile = getSnapshotFile(file);
+        if (snapshotFile.exists()) {
+            try {
+                Instances instances = readSnapshot(snapshotFile, length, lastModified);
+                if (instances != null) {
+                    return instances;
+                }
+            } catch (IOException e) {
+                System.out.println("Damaged snapshot " + snapshotFile + ": " + e.getMessage());
+            }
+        }
+
+        Instances instances = new ConverterUtils.DataSource(file.getPath()).getDataSet();
+        if (isSupported(instances)) {
+            try {
+                writeSnapshot(instances, snapshotFile, length, lastModified);
+            } catch (IOException e) {
+                System.out.println("Can't write snapshot " + snapshotFile + ": " + e.getMessage());
+            }
+        }
+        return instances;
+    }
+
+    private static boolean isSupported(Instances instances) {
+        for (int j = 0; j < instances.numAttributes(); ++j) {
+            Attribute attr = instances.attribute(j);
+            if (!attr.isNumeric() && !attr.isNominal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeSnapshot(Instances instances, File snapshotFile, long length, long lastModified)
+            throws IOException {
+        // unique name: worker JVMs may write the same snapshot at once
+        File tmpFile = File.createTempFile(snapshotFile.getName(), ".tmp", snapshotFile.getAbsoluteFile().getParentFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+
+            writeString(out, instances.relationName());
+            out.writeInt(instances.numAttributes());
+            for (int j = 0; j < instances.numAttributes(); ++j) {
+                Attribute attr = instances.attribute(j);
+                writeString(out, attr.name());
+                if (attr.isNominal()) {
+                    out.writeByte(NOMINAL);
+                    out.writeInt(attr.numValues());
+                    for (int k = 0; k < attr.numValues(); ++k) {
+                        writeString(out, attr.value(k));
+                    }
+                } else {
+                    out.writeByte(NUMERIC);
+                }
+            }
+            out.writeInt(instances.classIndex());
+
+            out.writeInt(instances.numInstances());
+            for (int i = 0; i < instances.numInstances(); ++i) {
+                out.writeDouble(instances.instance(i).weight());
+            }
+            for (int i = 0; i < instances.numInstances(); ++i) {
+                Instance inst = instances.instance(i);
+                for (int j = 0; j < instances.numAttributes(); ++j) {
+                    out.writeDouble(inst.value(j));
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return instances of the snapshot, or null if the snapshot is of another
+     *         version or of another state of the source file
+     */
+    private static Instances readSnapshot(File snapshotFile, long length, long lastModified) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a snapshot");
+        }
+        if (buffer.getInt() != VERSION || buffer.getLong() != length || buffer.getLong() != lastModified) {
+            return null;
+        }
+
+        String relationName = readString(buffer);
+        int numAttributes = buffer.getInt();
+        FastVector attributes = new FastVector(numAttributes);
+        for (int j = 0; j < numAttributes; ++j) {
+            String name = readString(buffer);
+            if (buffer.get() == NOMINAL) {
+                int numValues = buffer.getInt();
+                FastVector values = new FastVector(numValues);
+                for (int k = 0; k < numValues; ++k) {
+                    values.addElement(readString(buffer));
+                }
+                attributes.addElement(new Attribute(name, values));
+            } else {
+                attributes.addElement(new Attribute(name));
+            }
+        }
+        int classIndex = buffer.getInt();
+
+        int numInstances = buffer.getInt();
+        DoubleBuffer weights = buffer.slice().asDoubleBuffer();
+        buffer.position(buffer.position() + 8 * numInstances);
+        DoubleBuffer values = buffer.slice().asDoubleBuffer();
+        if (values.remaining() < (long) numInstances * numAttributes) {
+            throw new IOException("snapshot is truncated");
+        }
+
+        Instances instances = new Instances(relationName, attributes, numInstances);
+        for (int i = 0; i < numInstances; ++i) {
+            double[] row = new double[numAttributes];
+            values.get(row);
+            instances.add(new Instance(weights.get(i), row));
+        }
+        instances.setClassIndex(classIndex);
+        return instances;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -108,53 +108,94 @@ public class DatasetFactory {
      * @return
      */
     public static Instances makeWithMissingAttrsUniformly(Instances original, double percent) {
+        return makeWithMissingAttrsUniformly(original, percent, new Random());
+    }
+
+    /**
+     * The same as makeWithMissingAttrsUniformly(original, percent) with
+     * missing values chosen by 'random'.
+     *
+     * @param original original instances set
+     * @param percent percent of all attributes that will be assumed missing.
+     * @param random
+     * @return
+     */
+    public static Instances makeWithMissingAttrsUniformly(Instances original, double percent, Random random) {
+        return makeWithMissingAttrsUniformly(original, getAllRows(original), percent, random);
+    }
+
+    /**
+     * The same as makeWithMissingAttrsUniformly(original, percent, random)
+     * for instances made of rows of 'base', without making them first.
+     *
+     * @param base
+     * @param rows rows of 'base' in order of the result
+     * @param percent percent of all attributes that will be assumed missing.
+     * @param random
+     * @return
+     */
+    public static Instances makeWithMissingAttrsUniformly(Instances base, int[] rows, double percent, Random random) {
         if (percent >= 1.0 || percent <= 0.0) {
             throw new IllegalArgumentException("'percent' value has to belong to interval (0, 1) (exclusively)");
         }
 
-        int n = original.numInstances();
-        int m = original.numAttributes();
+        int n = rows.length;
+        int classIndex = base.classIndex();
+        int m = classIndex < 0 ? base.numAttributes() : base.numAttributes() - 1; // class is excluded
 
-//        Random r = new Random(System.currentTimeMillis() % 10000); // todo
-//        int instToLeaveFull = r.nextInt(n);
+        int size = CellSampler.getGridSize(n, m);
+        int[] missingCells = CellSampler.sample(size, (int) (size * percent), random);
+        return withMissingCells(base, rows, missingCells, m);
+    }
 
-        Instances resInstances = new Instances(original);
-        int classIndex = resInstances.classIndex();
-        List<Pair<Integer, Integer>> toBeMissingList = new ArrayList<>(n * m);
-        if (classIndex < 0) {
-            // no class attribute
-            for (int i = 0; i < original.numInstances(); ++i) {
-                // todo
-//                if (i == instToLeaveFull) {
-//                    continue;
-//                }
-
-                for (int j = 0; j < original.numAttributes(); ++j) {
-                    toBeMissingList.add(new Pair<>(i, j));
-                }
-            }
-        } else {
-            // exclude class attribute
-            for (int i = 0; i < original.numInstances(); ++i) {
-                // todo
-//                if (i == instToLeaveFull) {
-//                    continue;
-//                }
-
-                for (int j = 0; j < original.numAttributes(); ++j) {
-                    if (j != classIndex) {
-                        toBeMissingList.add(new Pair<>(i, j));
-                    }
-                }
-            }
+    private static int[] getAllRows(Instances instances) {
+        int[] rows = new int[instances.numInstances()];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = i;
         }
+        return rows;
+    }
+
+    /**
+     * Make copy of 'original' with missing values in 'missingCells'.
+     *
+     * @param original
+     * @param missingCells cells encoded as (instIndex * m + attrIndex) in
+     *                     increasing order, where attribute indexes skip the
+     *                     class attribute
+     * @param m number of attributes except the class one
+     * @return
+     */
+    public static Instances withMissingCells(Instances original, int[] missingCells, int m) {
+        return withMissingCells(original, getAllRows(original), missingCells, m);
+    }
 
-//        int numOfValuesToSetMissing = (int) ((toBeMissingList.size() + (m - 1)) * percent); // todo '+ (m - 1)' as we skipped 'instToLeaveFull' instance
-        int numOfValuesToSetMissing = (int) (toBeMissingList.size() * percent);
-        Collections.shuffle(toBeMissingList);
-        toBeMissingList = toBeMissingList.subList(0, numOfValuesToSetMissing);
-        for (Pair<Integer, Integer> cell : toBeMissingList) {
-            resInstances.instance(cell.first).setMissing(cell.second);
+    /**
+     * Make instances of rows of 'base' with missing values in 'missingCells'.
+     *
+     * @param base
+     * @param rows rows of 'base' in order of the result
+     * @param missingCells cells encoded as (instIndex * m + attrIndex) in
+     *                     increasing order, where instance indexes are the
+     *                     ones of the result
+     * @param m number of attributes except the class one
+     * @return
+     */
+    public static Instances withMissingCells(Instances base, int[] rows, int[] missingCells, int m) {
+        int classIndex = base.classIndex();
+        Instances resInstances = new Instances(base, rows.length);
+        int k = 0; // next cell of 'missingCells'
+        for (int i = 0; i < rows.length; ++i) {
+            Instance inst = base.instance(rows[i]);
+            double[] values = inst.toDoubleArray();
+            for (; k < missingCells.length && missingCells[k] < (i + 1) * m; ++k) {
+                int attrIndex = missingCells[k] - i * m;
+                if (classIndex >= 0 && attrIndex >= classIndex) {
+                    ++attrIndex; // skip class attribute
+                }
+                values[attrIndex] = Instance.missingValue();
+            }
+            resInstances.add(new Instance(inst.weight(), values));
         }
 
         return resInstances;
@@ -177,12 +218,14 @@ public class DatasetFactory {
             throw new IllegalArgumentException("The class index for the instances isn't specified");
         }
 
+        double[] predictions = CompiledJ48.compile(cls).predict(test);
+
         double res = 0.0;
         int classesNumber = test.attribute(test.classIndex()).numValues();
         for (int curClass = 0; curClass < classesNumber; ++curClass) {
             int acc = 0;
             for (int instIndex = 0; instIndex < test.numInstances(); ++instIndex) {
-                double classIndex = cls.classifyInstance(test.instance(instIndex));
+                double classIndex = predictions[instIndex];
                 if (test.instance(instIndex).classValue() == curClass) {
                     if (classIndex == curClass) {
                         ++acc; // true positive
@@ -208,14 +251,37 @@ public class DatasetFactory {
      * @throws Exception
      */
     public static double calculateAccuracy(J48 cls, Instances test) throws Exception {
+        return calculateAccuracy(CompiledJ48.compile(cls), test);
+    }
+
+    public static double calculateAccuracy(CompiledJ48 cls, Instances test) {
         if (test.classIndex() < 0) {
             throw new IllegalArgumentException("The class index for the instances isn't specified");
         }
 
+        double[] predictions = cls.predict(test);
+
         int cnt = 0;
         for (int i = 0; i < test.numInstances(); ++i) {
             Instance inst = test.instance(i);
-            if (inst.classValue() == (int) cls.classifyInstance(test.instance(i))) {
+            if (inst.classValue() == (int) predictions[i]) {
+                ++cnt;
+            }
+        }
+
+        return (double) cnt / ((double) test.numInstances());
+    }
+
+    public static double calculateAccuracy(CompiledJ48 cls, InstancesOverlay test) {
+        if (test.getBase().classIndex() < 0) {
+            throw new IllegalArgumentException("The class index for the instances isn't specified");
+        }
+
+        double[] predictions = cls.predict(test);
+
+        int cnt = 0;
+        for (int i = 0; i < test.numInstances(); ++i) {
+            if (test.instance(i).classValue() == (int) predictions[i]) {
                 ++cnt;
             }
         }
@@ -241,38 +307,32 @@ public class DatasetFactory {
                                                                       int folds,
                                                                       double percents,
                                                                       int batchSize) throws Exception {
-        // todo
-        int itersNum = 1;
-
-        int allQueriesNum = (int) ((double) (instances.numInstances() * (instances.numAttributes() - 1)) * ((double) (folds - 1) / folds));
-        Map<Integer, List<Double>> numToAccByRuns = new LinkedHashMap<>();
-        List<Pair<Integer, List<Double>>> numToAcc = new ArrayList<>();
-        for (int i = 0; i < runsNum; ++i) {
-            // Randomize data
-            Random rand = new Random(seed + i);
-            Instances randData = new Instances(instances);   // create copy of original data
-            randData.randomize(rand);
-            randData.stratify(folds);
-
-            for (int j = 0; j < folds; ++j) {
-                Instances train = randData.trainCV(folds, j); // not always same size
-                Instances test = randData.testCV(folds, j);
-
-                // Add missing
-                Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(train, percents);
-                System.out.println(String.format("runNum = %s, foldNum = %s", i, j));
-
-                QueryManager queryManager = new SimpleQueryManager(train);
-                RandomAFA afaMethod = new RandomAFA(trainMissing, queryManager, batchSize);
-
-                getLearningCurveHelper(numToAcc, afaMethod, test, itersNum, folds, j, false);
-            }
-
-            collectInfoFromRun(numToAcc, numToAccByRuns, allQueriesNum);
-            numToAcc.clear();
-        }
+        return randomAFAGetLerningCurve(instances, runsNum, seed, folds, percents, batchSize, null);
+    }
 
-        return numToAccByRuns;
+    /**
+     * Random active feature-value acquiring
+     *
+     * @param instances
+     * @param runsNum
+     * @param seed
+     * @param folds
+     * @param percents
+     * @param batchSize
+     * @param sink points of the curve are appended to it as soon as computed, may be null
+     * @return
+     * @throws Exception
+     */
+    public static Map<Integer, List<Double>> randomAFAGetLerningCurve(Instances instances,
+                                                                      int runsNum,
+                                                                      int seed,
+                                                                      int folds,
+                                                                      double percents,
+                                                                      int batchSize,
+                                                                      ResultSink sink) throws Exception {
+        LearningCurveEngine engine = new LearningCurveEngine(LearningCurveEngine.getDefaultParallelism());
+        engine.setResultSink(sink);
+        return engine.getLearningCurve(instances, runsNum, seed, folds, percents, false, randomAFAFactory(batchSize));
     }
 
 
@@ -294,38 +354,32 @@ public class DatasetFactory {
                                                                 int folds,
                                                                 double percents,
                                                                 int batchSize) throws Exception {
-        // todo
-        int itersNum = 1;
-
-        int allQueriesNum = (int) ((double) (instances.numInstances() * (instances.numAttributes() - 1)) * ((double) (folds - 1) / folds));
-        Map<Integer, List<Double>> numToAccByRuns = new LinkedHashMap<>();
-        List<Pair<Integer, List<Double>>> numToAcc = new ArrayList<>();
-        for (int i = 0; i < runsNum; ++i) {
-            // Randomize data
-            Random rand = new Random(seed + i);
-            Instances randData = new Instances(instances);   // create copy of original data
-            randData.randomize(rand);
-            randData.stratify(folds);
-
-            for (int j = 0; j < folds; ++j) {
-                Instances train = randData.trainCV(folds, j); // not always same size
-                Instances test = randData.testCV(folds, j);
-
-                // Add missing
-                Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(train, percents);
-                System.out.println(String.format("runNum = %s, foldNum = %s", i, j));
-
-                QueryManager queryManager = new SimpleQueryManager(train);
-                AFABandit afaMethod = new AFABandit(trainMissing, queryManager, batchSize);
-
-                getLearningCurveHelper(numToAcc, afaMethod, test, itersNum, folds, j, false);
-            }
-
-            collectInfoFromRun(numToAcc, numToAccByRuns, allQueriesNum);
-            numToAcc.clear();
-        }
+        return afaBanditGetLerningCurve(instances, runsNum, seed, folds, percents, batchSize, null);
+    }
 
-        return numToAccByRuns;
+    /**
+     * AfaBanditGetLerningCurve
+     *
+     * @param instances
+     * @param runsNum
+     * @param seed
+     * @param folds
+     * @param percents
+     * @param batchSize
+     * @param sink points of the curve are appended to it as soon as computed, may be null
+     * @return
+     * @throws Exception
+     */
+    public static Map<Integer, List<Double>> afaBanditGetLerningCurve(Instances instances,
+                                                                int runsNum,
+                                                                int seed,
+                                                                int folds,
+                                                                double percents,
+                                                                int batchSize,
+                                                                      ResultSink sink) throws Exception {
+        LearningCurveEngine engine = new LearningCurveEngine(LearningCurveEngine.getDefaultParallelism());
+        engine.setResultSink(sink);
+        return engine.getLearningCurve(instances, runsNum, seed, folds, percents, false, afaBanditFactory(batchSize));
     }
 
 
@@ -349,52 +403,34 @@ public class DatasetFactory {
                                                                                double percents,
                                                                                int batchSize,
                                                                                int alpha) throws Exception {
-        // todo
-        int itersNum = 1;
-        double nowTime = System.currentTimeMillis();
-
-        Set<Integer> numericAttrsIndexes = getNumericAttrsIndexes(instances);
-
-        Discretize discretizer = new Discretize();
-        discretizer.setInputFormat(instances);
-
-        int allQueriesNum = (int) ((double) (instances.numInstances() * (instances.numAttributes() - 1)) * ((double) (folds - 1) / folds));
-        Map<Integer, List<Double>> numToAccByRuns = new LinkedHashMap<>();
-        List<Pair<Integer, List<Double>>> numToAcc = new ArrayList<>();
-        for (int i = 0; i < runsNum; ++i) {
-            // Randomize data
-            Random rand = new Random(seed + i);
-            Instances randData = new Instances(instances);   // create copy of original data
-            randData.randomize(rand);
-            randData.stratify(folds);
-
-            for (int j = 0; j < folds; ++j) {
-                Instances train = randData.trainCV(folds, j); // todo: not always same size
-                Instances test = randData.testCV(folds, j);
-
-                // Add missing
-                Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(train, percents);
-                System.out.println(String.format("runNum = %s, foldNum = %s", i, j));
-
-                QueryManager queryManager = new SimpleQueryManager(train);
-                SEUUniformSampling seuMethod = new SEUUniformSampling(trainMissing,
-                        queryManager,
-                        alpha,
-                        batchSize,
-                        discretizer,
-                        numericAttrsIndexes);
-
-                getLearningCurveHelper(numToAcc, seuMethod, test, itersNum, folds, j, true);
-
-                System.out.println("diff time = " + ((System.currentTimeMillis() - nowTime) / 1000));
-                nowTime = System.currentTimeMillis();
-            }
-
-            collectInfoFromRun(numToAcc, numToAccByRuns, allQueriesNum);
-            numToAcc.clear();
-        }
+        return seuUniformSamplingGetLerningCurve(instances, runsNum, seed, folds, percents, batchSize, alpha, null);
+    }
 
-        return numToAccByRuns;
+    /**
+     * SeuIniformSamplingGetLerningCurve
+     *
+     * @param instances
+     * @param runsNum
+     * @param seed
+     * @param folds
+     * @param percents
+     * @param batchSize
+     * @param alpha
+     * @param sink points of the curve are appended to it as soon as computed, may be null
+     * @return
+     * @throws Exception
+     */
+    public static Map<Integer, List<Double>> seuUniformSamplingGetLerningCurve(Instances instances,
+                                                                               int runsNum,
+                                                                               int seed,
+                                                                               int folds,
+                                                                               double percents,
+                                                                               int batchSize,
+                                                                               int alpha,
+                                                                               ResultSink sink) throws Exception {
+        LearningCurveEngine engine = new LearningCurveEngine(LearningCurveEngine.getDefaultParallelism());
+        engine.setResultSink(sink);
+        return engine.getLearningCurve(instances, runsNum, seed, folds, percents, true, seuUniformSamplingFactory(instances, batchSize, alpha));
     }
 
     /**
@@ -417,148 +453,100 @@ public class DatasetFactory {
                                                                          double percents,
                                                                          int batchSize,
                                                                          int esParam) throws Exception {
-
-        int itersNum = 1;
-        double nowTime = System.currentTimeMillis();
-
-        Set<Integer> numericAttrsIndexes = DatasetFactory.getNumericAttrsIndexes(instances);
-
-        Discretize discretizer = new Discretize();
-        discretizer.setInputFormat(instances);
-
-        int allQueriesNum = (int) ((double) (instances.numInstances() * (instances.numAttributes() - 1)) * ((double) (folds - 1) / folds));
-        Map<Integer, List<Double>> numToAccByRuns = new LinkedHashMap<>();
-        List<Pair<Integer, List<Double>>> numToAcc = new ArrayList<>();
-        for (int i = 0; i < runsNum; ++i) {
-            // Randomize data
-            Random rand = new Random(seed + i);
-            Instances randData = new Instances(instances);   // create copy of original data
-            randData.randomize(rand);
-            randData.stratify(folds);
-
-            for (int j = 0; j < folds; ++j) {
-                Instances train = randData.trainCV(folds, j); // todo: not always same size
-                Instances test = randData.testCV(folds, j);
-
-                // Add missing
-                Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(train, percents);
-                System.out.println(String.format("runNum = %s, foldNum = %s", i, j));
-
-                QueryManager queryManager = new SimpleQueryManager(train);
-                SEUErrorSampling seuMethod = new SEUErrorSampling(trainMissing,
-                        queryManager,
-                        esParam,
-                        batchSize,
-                        discretizer,
-                        numericAttrsIndexes);
-
-                getLearningCurveHelper(numToAcc, seuMethod, test, itersNum, folds, j, true);
-
-                System.out.println("diff time = " + ((System.currentTimeMillis() - nowTime) / 1000));
-                nowTime = System.currentTimeMillis();
-            }
-
-            collectInfoFromRun(numToAcc, numToAccByRuns, allQueriesNum);
-            numToAcc.clear();
-        }
-
-        return numToAccByRuns;
+        return seuErrorSamplingGetLerningCurve(instances, runsNum, seed, folds, percents, batchSize, esParam, null);
     }
 
     /**
+     * SeuErrorSamplingGetLerningCurve
      *
-     * @param numToAcc
-     * @param seuMethod
-     * @param testDataset
-     * @param itersNum
+     * @param instances
+     * @param runsNum
+     * @param seed
      * @param folds
-     * @param curFold
-     * @param enableLog
+     * @param percents
+     * @param batchSize
+     * @param esParam
+     * @param sink points of the curve are appended to it as soon as computed, may be null
+     * @return
      * @throws Exception
      */
-    private static void getLearningCurveHelper(List<Pair<Integer, List<Double>>> numToAcc,
-                                               AFAMethod seuMethod,
-                                               Instances testDataset,
-                                               int itersNum,
-                                               int folds,
-                                               int curFold,
-                                               boolean enableLog) throws Exception {
-        int cnt = 0; // counter for numToAcc
-
-        // Zero step
-        int possibleQueriesNum = seuMethod.getRealPossibleQueries();
-        if (enableLog) {
-            System.out.print("possibleQueriesNum = " + possibleQueriesNum);
-        }
+    public static Map<Integer, List<Double>> seuErrorSamplingGetLerningCurve(Instances instances,
+                                                                         int runsNum,
+                                                                         int seed,
+                                                                         int folds,
+                                                                         double percents,
+                                                                         int batchSize,
+                                                                         int esParam,
+                                                                             ResultSink sink) throws Exception {
+        LearningCurveEngine engine = new LearningCurveEngine(LearningCurveEngine.getDefaultParallelism());
+        engine.setResultSink(sink);
+        return engine.getLearningCurve(instances, runsNum, seed, folds, percents, true, seuErrorSamplingFactory(instances, batchSize, esParam));
+    }
 
-        int num = seuMethod.getAllQueriesNum() - possibleQueriesNum;
-        J48 initialCls = seuMethod.makeClassifier();
-        double acc = DatasetFactory.calculateAccuracy(initialCls, testDataset);
-        if (numToAcc.size() <= cnt) { // todo
-            List<Double> accs = new ArrayList<>();
-            accs.add(acc);
-            numToAcc.add(new Pair<>(num, accs));
-        } else {
-            numToAcc.get(cnt).second.add(acc);
-        }
-        ++cnt;
-
-
-        List<Pair<List<Pair<Integer, Integer>>, J48>> res = seuMethod.perform(itersNum);
-        J48 lastCls = new J48();
-        while (res.size() > 0) {
-            num = num + res.get(0).first.size();
-            acc = DatasetFactory.calculateAccuracy(res.get(0).second, testDataset);
-            if (numToAcc.size() <= cnt) { // todo
-                List<Double> accs = new ArrayList<>();
-                accs.add(acc);
-                numToAcc.add(new Pair<>(num, accs));
-            } else {
-                numToAcc.get(cnt).second.add(acc);
-            }
-            ++cnt;
+    static LearningCurveEngine.MethodFactory randomAFAFactory(int batchSize) {
+        return (trainMissing, queryManager, random) -> new RandomAFA(trainMissing, queryManager, batchSize, random);
+    }
 
-            lastCls = res.get(0).second; // todo
+    static LearningCurveEngine.MethodFactory afaBanditFactory(int batchSize) {
+        return (trainMissing, queryManager, random) -> new AFABandit(trainMissing, queryManager, batchSize);
+    }
 
-            possibleQueriesNum -= res.get(0).first.size();
-            if (enableLog) {
-                System.out.print(" --> " + possibleQueriesNum);
+    /**
+     * Discretizer is fitted on the first fold (see MethodFactory.prepare(..)),
+     * every method gets its own copy of it.
+     */
+    static LearningCurveEngine.MethodFactory seuUniformSamplingFactory(Instances instances,
+                                                                       int batchSize,
+                                                                       int alpha) throws Exception {
+        Set<Integer> numericAttrsIndexes = getNumericAttrsIndexes(instances);
+
+        Discretize discretizer = new Discretize();
+        discretizer.setInputFormat(instances);
+
+        return new LearningCurveEngine.MethodFactory() {
+            @Override
+            public void prepare(Instances firstTrainMissing) throws Exception {
+                Filter.useFilter(firstTrainMissing, discretizer);
             }
-            res = seuMethod.perform(itersNum);
-        }
 
-        if (enableLog) {
-            System.out.println(" --end--> 0");
-            if (curFold == folds - 1) { // todo
-                J48 cls = lastCls;
-                System.out.println("Super test of last classifier:");
-                System.out.println("Acccuracy = " + DatasetFactory.calculateAccuracy(cls, testDataset));
-                System.out.println("_____");
+            @Override
+            public AFAMethod make(Instances trainMissing, QueryManager queryManager, Random random) throws Exception {
+                return new SEUUniformSampling(trainMissing,
+                        queryManager,
+                        alpha,
+                        batchSize,
+                        (Discretize) Filter.makeCopy(discretizer),
+                        numericAttrsIndexes,
+                        random);
             }
-        }
+        };
     }
 
-    /**
-     * todo
-     *
-     * @param numToAcc
-     * @param numToAccByRuns
-     * @param allQueriesNum
-     */
-    private static void collectInfoFromRun(List<Pair<Integer, List<Double>>> numToAcc,
-                                           Map<Integer, List<Double>> numToAccByRuns,
-                                           int allQueriesNum) {
-        for (Pair<Integer, List<Double>> pair : numToAcc) {
-            double avgAcc = pair.second.stream().mapToDouble(val -> val).average().getAsDouble();
-            int key = (int) (Math.round(100.0 * ((double) pair.first / (double) allQueriesNum)));
-            if (numToAccByRuns.containsKey(key)) {
-                numToAccByRuns.get(key).add(avgAcc);
-            } else {
-                List<Double> accuracies = new LinkedList<>();
-                accuracies.add(avgAcc);
-                numToAccByRuns.put(key, accuracies);
+    static LearningCurveEngine.MethodFactory seuErrorSamplingFactory(Instances instances,
+                                                                     int batchSize,
+                                                                     int esParam) throws Exception {
+        Set<Integer> numericAttrsIndexes = getNumericAttrsIndexes(instances);
+
+        Discretize discretizer = new Discretize();
+        discretizer.setInputFormat(instances);
+
+        return new LearningCurveEngine.MethodFactory() {
+            @Override
+            public void prepare(Instances firstTrainMissing) throws Exception {
+                Filter.useFilter(firstTrainMissing, discretizer);
             }
-        }
+
+            @Override
+            public AFAMethod make(Instances trainMissing, QueryManager queryManager, Random random) throws Exception {
+                return new SEUErrorSampling(trainMissing,
+                        queryManager,
+                        esParam,
+                        batchSize,
+                        (Discretize) Filter.makeCopy(discretizer),
+                        numericAttrsIndexes,
+                        random);
+            }
+        };
     }
 
 
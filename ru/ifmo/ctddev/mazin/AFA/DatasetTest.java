@@ -1,5 +1,6 @@
 package ru.ifmo.ctddev.mazin.AFA;
 
+import weka.attributeSelection.InfoGainAttributeEval;
 import weka.classifiers.trees.J48;
 import weka.core.Attribute;
 import weka.core.Instance;
@@ -12,12 +13,14 @@ import weka.filters.unsupervised.attribute.Remove;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class DatasetTest {
     private static final String RES_PATH = System.getProperty("user.dir") + "/res/results/";
     private static final String ALL_RUNS = "ALL_RUNS";
 
     private static final double PERCENTS = 0.5;
+    private static final int SEED = 137; // seed of tests of AFA methods
     private static ArrayList<Dataset> dataSets;
 
     public static void main(String[] args) {
@@ -60,6 +63,7 @@ public class DatasetTest {
 //            }
             Pair<Map<Integer, List<Double>>, String> methodResult = test.massiveTest(instances, datasetName);
             String filename = test.writeMethodResult(methodResult, datasetName);
+            test.writeMethodResultTable(methodResult, datasetName);
 
             // todo
 //            String prefix = RES_PATH;
@@ -119,21 +123,95 @@ public class DatasetTest {
 
     public String writeMethodResult(Pair<Map<Integer, List<Double>>, String> methodResult, String datasetName) throws IOException {
         String filename = RES_PATH + datasetName + "_" + methodResult.second + ".csv";
-        FileWriter fw = new FileWriter(filename);
-        for (Map.Entry<Integer, List<Double>> entry : methodResult.first.entrySet()) {
-            StringBuilder sb = new StringBuilder(entry.getKey());
-            sb.append(entry.getKey());
-            for (Double val : entry.getValue()) {
-                sb.append("," + val);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename))) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Integer, List<Double>> entry : methodResult.first.entrySet()) {
+                sb.setLength(0);
+                sb.append(entry.getKey());
+                for (Double val : entry.getValue()) {
+                    sb.append(',').append(val);
+                }
+                bw.write(sb.toString());
+                bw.newLine();
             }
-            sb.append("\n");
-            fw.write(sb.toString());
         }
-        fw.close();
 
         return filename;
     }
 
+    /**
+     * Write result in binary format (see ResultTable) next to the CSV of
+     * writeMethodResult(..).
+     *
+     * @param methodResult
+     * @param datasetName
+     * @return
+     * @throws IOException
+     */
+    public String writeMethodResultTable(Pair<Map<Integer, List<Double>>, String> methodResult, String datasetName) throws IOException {
+        String filename = RES_PATH + datasetName + "_" + methodResult.second + ResultTable.EXT;
+        new ResultTable(datasetName, methodResult.second, Collections.emptyMap(), methodResult.first)
+                .write(new File(filename));
+
+        return filename;
+    }
+
+    /**
+     * Convert every ALL_RUNS CSV of the results directory which has no binary
+     * copy yet into binary format.
+     *
+     * @throws IOException
+     */
+    public void convertResultsToTables() throws IOException {
+        File[] files = new File(RES_PATH).listFiles((dir, name) -> name.endsWith(".csv") && name.contains(ALL_RUNS)
+                && !name.endsWith("-POINTS.csv"));
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - ".csv".length());
+            File tableFile = new File(RES_PATH + name + ResultTable.EXT);
+            if (tableFile.exists()) {
+                continue;
+            }
+            int sep = name.indexOf('_');
+            String datasetName = sep < 0 ? "" : name.substring(0, sep);
+            ResultTable.importCsv(file, datasetName, name.substring(sep + 1), Collections.emptyMap()).write(tableFile);
+        }
+    }
+
+    /**
+     * Check that a result is the same after writing and reading it in binary
+     * format and after CSV export and import.
+     *
+     * @param result
+     * @return
+     * @throws IOException
+     */
+    public boolean resultTableTest(Map<Integer, List<Double>> result) throws IOException {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("runs", "6");
+        ResultTable table = new ResultTable("dataset", "method", params, result);
+
+        File file = File.createTempFile("afa", ResultTable.EXT);
+        File csvFile = File.createTempFile("afa", ".csv");
+        try {
+            table.write(file);
+            ResultTable read = ResultTable.read(file);
+            if (!read.toMap().equals(result) || !read.getParams().equals(params)
+                    || !read.getDatasetName().equals("dataset") || !read.getMethodName().equals("method")) {
+                System.out.println("binary");
+                return false;
+            }
+
+            read.exportCsv(csvFile);
+            return ResultTable.importCsv(csvFile, "dataset", "method", params).toMap().equals(result);
+        } finally {
+            file.delete();
+            csvFile.delete();
+        }
+    }
 
     /**
      * % -> mean, error bar
@@ -203,6 +281,684 @@ public class DatasetTest {
         return true;
     }
 
+    /**
+     * Check that InfoGainTracker gives the same info gains as InfoGainAttributeEval
+     * while missing values are acquired one by one.
+     *
+     * @param instances
+     * @return
+     * @throws Exception
+     */
+    public boolean infoGainTrackerTest(Instances instances) throws Exception {
+        QueryManager queryManager = new SimpleQueryManager(instances);
+        Instances testMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS);
+        InfoGainTracker tracker = new InfoGainTracker(testMissing);
+
+        int m = testMissing.numAttributes() - 1;
+        int acquired = 0;
+        for (int i = 0; i < testMissing.numInstances(); ++i) {
+            for (int j = 0; j < m; ++j) {
+                if (!testMissing.instance(i).isMissing(j)) {
+                    continue;
+                }
+                testMissing.instance(i).setValue(j, queryManager.getValue(i, j));
+                tracker.valueAcquired(i, j);
+
+                if (++acquired % 100 == 0) {
+                    InfoGainAttributeEval ig = new InfoGainAttributeEval();
+                    ig.buildEvaluator(testMissing);
+                    for (int attrIndex = 0; attrIndex < m; ++attrIndex) {
+                        if (ig.evaluateAttribute(attrIndex) != tracker.evaluateAttribute(attrIndex)) {
+                            System.out.println("acquired = " + acquired + ", attrIndex = " + attrIndex);
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that CompiledJ48 gives the same predictions and distributions as J48.
+     *
+     * @param instances
+     * @return
+     * @throws Exception
+     */
+    public boolean compiledJ48Test(Instances instances) throws Exception {
+        Instances testMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS);
+        for (boolean useLaplace : new boolean[]{false, true}) {
+            J48 classifier = new J48();
+            classifier.setUseLaplace(useLaplace);
+            classifier.buildClassifier(testMissing);
+
+            CompiledJ48 compiled = CompiledJ48.compile(classifier);
+            double[] predictions = compiled.predict(testMissing);
+            double[][] distributions = compiled.distributions(testMissing);
+            for (int i = 0; i < testMissing.numInstances(); ++i) {
+                Instance inst = testMissing.instance(i);
+                if (predictions[i] != classifier.classifyInstance(inst)
+                        || !Arrays.equals(distributions[i], classifier.distributionForInstance(inst))) {
+                    System.out.println("useLaplace = " + useLaplace + ", instIndex = " + i);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that trees of WhatIfJ48 are the same as J48 built on the changed
+     * instances from scratch, for first 'numQueries' missing values and all
+     * their values.
+     *
+     * @param instances
+     * @param numQueries
+     * @return
+     * @throws Exception
+     */
+    public boolean whatIfJ48Test(Instances instances, int numQueries) throws Exception {
+        Discretize discretizer = new Discretize();
+        discretizer.setInputFormat(instances);
+        Instances discInstances = Filter.useFilter(instances, discretizer);
+        Instances testMissing = DatasetFactory.makeWithMissingAttrsUniformly(discInstances, PERCENTS);
+
+        WhatIfJ48 whatIf = new WhatIfJ48(testMissing);
+        if (!Arrays.deepEquals(whatIf.getClassifier().distributions(testMissing),
+                CompiledJ48.compile(DatasetFactory.staticMakeClassifier(testMissing)).distributions(testMissing))) {
+            System.out.println("initial tree");
+            return false;
+        }
+
+        int m = testMissing.numAttributes() - 1;
+        for (int i = 0; i < testMissing.numInstances() && numQueries > 0; ++i) {
+            for (int j = 0; j < m && numQueries > 0; ++j) {
+                if (!testMissing.instance(i).isMissing(j)) {
+                    continue;
+                }
+                --numQueries;
+
+                for (int value = 0; value < testMissing.attribute(j).numValues(); ++value) {
+                    Instances changed = new Instances(testMissing);
+                    changed.instance(i).setValue(j, value);
+                    J48 classifier = DatasetFactory.staticMakeClassifier(changed);
+
+                    if (!Arrays.deepEquals(whatIf.buildWithValue(i, j, value).distributions(changed),
+                            CompiledJ48.compile(classifier).distributions(changed))
+                            || whatIf.getAccuracyWithValue(i, j, value)
+                            != DatasetFactory.calculateAccuracy(classifier, changed)) {
+                        System.out.println("instIndex = " + i + ", attrIndex = " + j + ", value = " + value);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * SEU-US with alpha = 10 and batch of 1% of cells, made with seed SEED
+     * from 'instances' with PERCENTS of values missing.
+     */
+    private SEUUniformSampling makeSeuUniformSampling(Instances instances) throws Exception {
+        int batchSize = instances.numInstances() * (instances.numAttributes() - 1) / 100 + 1;
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+        LearningCurveEngine.MethodFactory factory = DatasetFactory.seuUniformSamplingFactory(instances, batchSize, 10);
+        factory.prepare(trainMissing);
+        return (SEUUniformSampling) factory.make(trainMissing, new SimpleQueryManager(instances), new Random(SEED));
+    }
+
+    /**
+     * Check that RandomAFA restored from a checkpoint written after
+     * 'stepsNum' steps acquires the same queries as the one which wasn't
+     * interrupted, also if it's pipelined (queries of the next step are
+     * requested when the checkpoint is written).
+     *
+     * @param instances
+     * @param stepsNum
+     * @return
+     * @throws Exception
+     */
+    public boolean checkpointTest(Instances instances, int stepsNum) throws Exception {
+        int batchSize = instances.numInstances() * (instances.numAttributes() - 1) / 100 + 1;
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+
+        for (boolean pipelined : new boolean[]{false, true}) {
+            QueryManager queryManager = pipelined ? new LatencyQueryManager(new SimpleQueryManager(instances), 1)
+                    : new SimpleQueryManager(instances);
+            RandomAFA original = new RandomAFA(trainMissing, queryManager, batchSize, new Random(SEED));
+            original.setPipelined(pipelined);
+            List<Pair<Integer, Double>> curve = new ArrayList<>();
+            for (int k = 0; k < stepsNum; ++k) {
+                original.perform(1);
+                curve.add(new Pair<>(k, (double) k));
+            }
+
+            File file = File.createTempFile("afa", ".ckpt");
+            try {
+                Checkpoint.write(file, curve, original);
+                RandomAFA restored = new RandomAFA(trainMissing, queryManager, batchSize, new Random(SEED + 1));
+                restored.setPipelined(pipelined);
+                if (!curve.equals(Checkpoint.read(file, restored))) {
+                    System.out.println("curve, pipelined = " + pipelined);
+                    return false;
+                }
+
+                List<Pair<List<Pair<Integer, Integer>>, J48>> res = original.perform(1);
+                List<Pair<List<Pair<Integer, Integer>>, J48>> restoredRes = restored.perform(1);
+                while (res.size() > 0) {
+                    if (restoredRes.size() == 0 || !res.get(0).first.equals(restoredRes.get(0).first)) {
+                        System.out.println("queries, pipelined = " + pipelined);
+                        return false;
+                    }
+                    res = original.perform(1);
+                    restoredRes = restored.perform(1);
+                }
+                if (restoredRes.size() != 0) {
+                    return false;
+                }
+            } finally {
+                file.delete();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that SEU-US with racing selects nearly the same queries as
+     * exhaustive scoring (racing may drop a good candidate with probability
+     * bounded by RacingEvaluator.DEFAULT_DELTA).
+     *
+     * @param instances
+     * @return
+     * @throws Exception
+     */
+    public boolean racingTest(Instances instances) throws Exception {
+        List<Set<Pair<Integer, Integer>>> queries = new ArrayList<>();
+        for (boolean racing : new boolean[]{false, true}) {
+            AFAMethod seu = makeSeuUniformSampling(instances);
+            seu.setRacing(racing);
+            long startTime = System.currentTimeMillis();
+            List<Pair<List<Pair<Integer, Integer>>, J48>> res = seu.perform(1);
+            queries.add(new HashSet<>(res.get(0).first));
+            System.out.println(String.format("racing = %s, time = %s ms: %s", racing,
+                    System.currentTimeMillis() - startTime, seu.getLastStepReport()));
+        }
+
+        Set<Pair<Integer, Integer>> common = new HashSet<>(queries.get(0));
+        common.retainAll(queries.get(1));
+        System.out.println(String.format("common = %s of %s", common.size(), queries.get(0).size()));
+        return queries.get(0).size() == queries.get(1).size() && common.size() >= 0.9 * queries.get(0).size();
+    }
+
+    /**
+     * Check that SEU-US with a budget large enough selects the same queries
+     * as exhaustive scoring and that with a tiny budget it still selects
+     * a full batch.
+     *
+     * @param instances
+     * @return
+     * @throws Exception
+     */
+    public boolean stepBudgetTest(Instances instances) throws Exception {
+        List<List<Pair<Integer, Integer>>> queries = new ArrayList<>();
+        for (long budget : new long[]{0, 3600 * 1000, 1}) {
+            AFAMethod seu = makeSeuUniformSampling(instances);
+            seu.setStepBudgetMillis(budget);
+            List<Pair<List<Pair<Integer, Integer>>, J48>> res = seu.perform(1);
+            queries.add(res.get(0).first);
+            System.out.println("budget = " + budget + " ms: " + seu.getLastStepReport());
+        }
+
+        return queries.get(0).equals(queries.get(1)) && queries.get(2).size() == queries.get(0).size();
+    }
+
+    /**
+     * Check that batch and pipelined acquisition give the same queries as
+     * acquisition of values one by one: RandomAFA doesn't depend on values
+     * and AFABandit isn't pipelined.
+     *
+     * @param instances
+     * @param stepsNum
+     * @return
+     * @throws Exception
+     */
+    public boolean batchQueryManagerTest(Instances instances, int stepsNum) throws Exception {
+        int batchSize = instances.numInstances() * (instances.numAttributes() - 1) / 100 + 1;
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+        SimpleQueryManager simple = new SimpleQueryManager(instances);
+        QueryManager oneByOne = simple::getValue;
+        QueryManager slow = new LatencyQueryManager(simple, 5);
+
+        RandomAFA random = new RandomAFA(trainMissing, oneByOne, batchSize, new Random(SEED));
+        RandomAFA pipelinedRandom = new RandomAFA(trainMissing, slow, batchSize, new Random(SEED));
+        pipelinedRandom.setPipelined(true);
+        if (!sameQueries(random.perform(stepsNum), pipelinedRandom.perform(stepsNum))) {
+            System.out.println("random");
+            return false;
+        }
+
+        AFABandit bandit = new AFABandit(trainMissing, oneByOne, batchSize);
+        AFABandit batchBandit = new AFABandit(trainMissing, slow, batchSize);
+        if (!sameQueries(bandit.perform(stepsNum), batchBandit.perform(stepsNum))) {
+            System.out.println("bandit");
+            return false;
+        }
+
+        // pipelined bandit scores with older classifiers, only numbers of queries are the same
+        AFABandit fullBandit = new AFABandit(trainMissing, oneByOne, batchSize);
+        AFABandit pipelinedBandit = new AFABandit(trainMissing, slow, batchSize);
+        pipelinedBandit.setPipelined(true);
+        List<Pair<List<Pair<Integer, Integer>>, J48>> res = fullBandit.perform(stepsNum);
+        List<Pair<List<Pair<Integer, Integer>>, J48>> pipelinedRes = pipelinedBandit.perform(stepsNum);
+        if (res.size() != pipelinedRes.size()) {
+            return false;
+        }
+        for (int k = 0; k < res.size(); ++k) {
+            if (res.get(k).first.size() != pipelinedRes.get(k).first.size()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that folds run by LearningCurveEngine step by step are pipelined:
+     * with oracle latency RandomAFA requests values of the next step before
+     * values of the current one arrive, and its curve (with or without
+     * checkpoints) is the same as the one of not pipelined run.
+     *
+     * @param instances
+     * @return
+     * @throws Exception
+     */
+    public boolean pipelinedEngineTest(Instances instances) throws Exception {
+        int batchSize = instances.numInstances() * (instances.numAttributes() - 1) / 100 + 1;
+        int folds = 2;
+        String latency = System.getProperty(LearningCurveEngine.ORACLE_LATENCY_PROPERTY);
+        String pipelined = System.getProperty(LearningCurveEngine.PIPELINED_PROPERTY);
+        System.setProperty(LearningCurveEngine.ORACLE_LATENCY_PROPERTY, "20");
+        File checkpointFile = File.createTempFile("afa", ".ckpt");
+        try {
+            List<List<Pair<Integer, Double>>> curves = new ArrayList<>();
+            List<OverlapCountingQueryManager> queryManagers = new ArrayList<>();
+            for (int run = 0; run < 3; ++run) {
+                System.setProperty(LearningCurveEngine.PIPELINED_PROPERTY, String.valueOf(run > 0));
+                checkpointFile.delete();
+                List<OverlapCountingQueryManager> made = new ArrayList<>();
+                LearningCurveEngine.MethodFactory factory = (trainMissing, queryManager, random) -> {
+                    OverlapCountingQueryManager counting =
+                            new OverlapCountingQueryManager((BatchQueryManager) queryManager);
+                    made.add(counting);
+                    return new RandomAFA(trainMissing, counting, batchSize, random);
+                };
+                long startTime = System.currentTimeMillis();
+                curves.add(LearningCurveEngine.getFoldCurve(instances, SEED, 0, folds, 0, PERCENTS, false,
+                        factory, run == 2 ? checkpointFile : null));
+                queryManagers.add(made.get(0));
+                System.out.println(String.format("run %s: time = %s ms, overlapped requests = %s", run,
+                        System.currentTimeMillis() - startTime, made.get(0).getOverlappedNum()));
+            }
+
+            return curves.get(0).equals(curves.get(1)) && curves.get(0).equals(curves.get(2))
+                    && queryManagers.get(0).getOverlappedNum() == 0
+                    && queryManagers.get(1).getOverlappedNum() > 0
+                    && queryManagers.get(2).getOverlappedNum() > 0;
+        } finally {
+            checkpointFile.delete();
+            restoreProperty(LearningCurveEngine.ORACLE_LATENCY_PROPERTY, latency);
+            restoreProperty(LearningCurveEngine.PIPELINED_PROPERTY, pipelined);
+        }
+    }
+
+    private static void restoreProperty(String key, String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * Counts requests made while values of a previous request haven't
+     * arrived yet.
+     */
+    private static class OverlapCountingQueryManager implements BatchQueryManager {
+        private final BatchQueryManager source;
+        private final List<CompletableFuture<double[]>> requests = new ArrayList<>();
+        private int overlappedNum;
+
+        OverlapCountingQueryManager(BatchQueryManager source) {
+            this.source = source;
+        }
+
+        @Override
+        public double getValue(int instanceIndex, int attributeIndex) {
+            return source.getValue(instanceIndex, attributeIndex);
+        }
+
+        @Override
+        public CompletableFuture<double[]> getValues(List<Pair<Integer, Integer>> queries) {
+            for (CompletableFuture<double[]> request : requests) {
+                if (!request.isDone()) {
+                    ++overlappedNum;
+                    break;
+                }
+            }
+            requests.removeIf(CompletableFuture::isDone);
+            CompletableFuture<double[]> res = source.getValues(queries);
+            requests.add(res);
+            return res;
+        }
+
+        int getOverlappedNum() {
+            return overlappedNum;
+        }
+    }
+
+    private boolean sameQueries(List<Pair<List<Pair<Integer, Integer>>, J48>> res,
+                                List<Pair<List<Pair<Integer, Integer>>, J48>> otherRes) {
+        if (res.size() != otherRes.size()) {
+            return false;
+        }
+        for (int k = 0; k < res.size(); ++k) {
+            if (!res.get(k).first.equals(otherRes.get(k).first)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that lazy and threshold selections of AFABandit give the same
+     * queries as exhaustive one at every step.
+     *
+     * @param instances
+     * @param stepsNum
+     * @return
+     * @throws Exception
+     */
+    public boolean lazySelectionTest(Instances instances, int stepsNum) throws Exception {
+        int batchSize = instances.numInstances() * (instances.numAttributes() - 1) / 100 + 1;
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+
+        AFABandit exhaustive = new AFABandit(trainMissing, new SimpleQueryManager(instances), batchSize);
+        AFABandit lazy = new AFABandit(trainMissing, new SimpleQueryManager(instances), batchSize);
+        lazy.setSelectionMode(AFABandit.SelectionMode.LAZY);
+        AFABandit threshold = new AFABandit(trainMissing, new SimpleQueryManager(instances), batchSize);
+        threshold.setSelectionMode(AFABandit.SelectionMode.THRESHOLD);
+
+        long startTime = System.currentTimeMillis();
+        List<Pair<List<Pair<Integer, Integer>>, J48>> res = exhaustive.perform(stepsNum);
+        long exhaustiveTime = System.currentTimeMillis() - startTime;
+        startTime = System.currentTimeMillis();
+        List<Pair<List<Pair<Integer, Integer>>, J48>> lazyRes = lazy.perform(stepsNum);
+        long lazyTime = System.currentTimeMillis() - startTime;
+        startTime = System.currentTimeMillis();
+        List<Pair<List<Pair<Integer, Integer>>, J48>> thresholdRes = threshold.perform(stepsNum);
+        System.out.println(String.format("exhaustive = %s ms, lazy = %s ms, threshold = %s ms", exhaustiveTime,
+                lazyTime, System.currentTimeMillis() - startTime));
+
+        return sameQueries(res, lazyRes) && sameQueries(res, thresholdRes);
+    }
+
+    /**
+     * Check that discretized instances of SEU-US updated with acquired values
+     * are the same as the instances filtered again after every step.
+     *
+     * @param instances
+     * @param stepsNum
+     * @return
+     * @throws Exception
+     */
+    public boolean discretizedMirrorTest(Instances instances, int stepsNum) throws Exception {
+        SEUUniformSampling seu = makeSeuUniformSampling(instances);
+        for (int step = 0; step < stepsNum; ++step) {
+            seu.perform(1);
+            Instances expected = Filter.useFilter(seu.instances, seu.discMirror.getDiscretizer());
+            for (int i = 0; i < expected.numInstances(); ++i) {
+                for (int j = 0; j < expected.numAttributes(); ++j) {
+                    double expectedValue = expected.instance(i).value(j);
+                    double value = seu.discInstances.instance(i).value(j);
+                    if (Instance.isMissingValue(expectedValue) != Instance.isMissingValue(value) ||
+                            !Instance.isMissingValue(value) && expectedValue != value) {
+                        System.out.println(String.format("step %s, cell (%s, %s): %s instead of %s",
+                                step, i, j, value, expectedValue));
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that SEU-US acquires the same queries whether classifiers of
+     * attributes are kept between steps, built again at every step or
+     * bounded by one kept classifier.
+     *
+     * @param instances
+     * @param stepsNum
+     * @return
+     * @throws Exception
+     */
+    public boolean attrClassifierCacheTest(Instances instances, int stepsNum) throws Exception {
+        SEUUniformSampling cached = makeSeuUniformSampling(instances);
+        SEUUniformSampling rebuilt = makeSeuUniformSampling(instances);
+        SEUUniformSampling bounded = makeSeuUniformSampling(instances);
+        bounded.setAttrClassifiersCapacity(1);
+
+        for (int step = 0; step < stepsNum; ++step) {
+            rebuilt.attrClassifiers.clear();
+            List<Pair<List<Pair<Integer, Integer>>, J48>> cachedRes = cached.perform(1);
+            List<Pair<List<Pair<Integer, Integer>>, J48>> rebuiltRes = rebuilt.perform(1);
+            List<Pair<List<Pair<Integer, Integer>>, J48>> boundedRes = bounded.perform(1);
+            if (!sameQueries(cachedRes, rebuiltRes) || !sameQueries(cachedRes, boundedRes)) {
+                System.out.println("step " + step);
+                return false;
+            }
+        }
+        System.out.println(String.format("classifiers built: cached = %s, rebuilt = %s, bounded = %s",
+                cached.attrClassifiers.getBuildsNum(), rebuilt.attrClassifiers.getBuildsNum(),
+                bounded.attrClassifiers.getBuildsNum()));
+        return true;
+    }
+
+    /**
+     * Check that train and test sets of fold views are the same as the ones
+     * of a copy of the instances after randomize(..) and stratify(..).
+     *
+     * @param instances
+     * @param folds
+     * @return
+     * @throws Exception
+     */
+    public boolean foldViewTest(Instances instances, int folds) throws Exception {
+        for (int seed = 0; seed < 3; ++seed) {
+            Instances randData = new Instances(instances);
+            randData.randomize(new Random(seed));
+            randData.stratify(folds);
+
+            int[] order = FoldView.getStratifiedOrder(instances, new Random(seed), folds);
+            for (int fold = 0; fold < folds; ++fold) {
+                FoldView view = new FoldView(instances, order, folds, fold);
+                if (!sameValues(randData.trainCV(folds, fold), view.getTrain()) ||
+                        !sameValues(randData.testCV(folds, fold), view.getTest())) {
+                    System.out.println(String.format("seed = %s, fold = %s", seed, fold));
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean sameValues(Instances instances, Instances other) {
+        if (instances.numInstances() != other.numInstances()) {
+            return false;
+        }
+        for (int i = 0; i < instances.numInstances(); ++i) {
+            if (!Arrays.equals(instances.instance(i).toDoubleArray(), other.instance(i).toDoubleArray())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that sampled cells are distinct and sorted, that instances with
+     * missing values made by the same seed are the same, have the expected
+     * number of missing values (up to values missing in 'instances'), known
+     * class labels and known values equal to the original ones.
+     *
+     * @param instances
+     * @return
+     * @throws Exception
+     */
+    public boolean missingCellsTest(Instances instances) throws Exception {
+        int size = CellSampler.getGridSize(instances.numInstances(), instances.numAttributes() - 1);
+        int[] cells = CellSampler.sample(size, (int) (size * PERCENTS), new Random(SEED));
+        for (int k = 0; k < cells.length; ++k) {
+            if (cells[k] < 0 || cells[k] >= size || k > 0 && cells[k - 1] >= cells[k]) {
+                System.out.println("sample isn't sorted set of cells at #" + k);
+                return false;
+            }
+        }
+        if (CellSampler.toMask(cells).cardinality() != cells.length) {
+            System.out.println("mask differs from sample");
+            return false;
+        }
+
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+        Instances sameMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+        if (!sameValues(trainMissing, sameMissing)) {
+            System.out.println("not reproducible");
+            return false;
+        }
+
+        int m = instances.numAttributes() - 1;
+        int missingNum = 0;
+        int originalMissingNum = 0; // these may be chosen to be missing too
+        for (int i = 0; i < instances.numInstances(); ++i) {
+            Instance inst = trainMissing.instance(i);
+            if (inst.classIsMissing()) {
+                System.out.println("class of instance #" + i + " is missing");
+                return false;
+            }
+            for (int j = 0; j < instances.numAttributes(); ++j) {
+                if (instances.instance(i).isMissing(j)) {
+                    ++originalMissingNum;
+                }
+                if (inst.isMissing(j)) {
+                    ++missingNum;
+                } else if (inst.value(j) != instances.instance(i).value(j)) {
+                    System.out.println(String.format("cell (%s, %s) is changed", i, j));
+                    return false;
+                }
+            }
+        }
+        int expected = (int) (instances.numInstances() * m * PERCENTS);
+        System.out.println(String.format("missing = %s, expected = %s", missingNum, expected));
+        return missingNum >= expected && missingNum <= expected + originalMissingNum;
+    }
+
+    /**
+     * Check that metrics are reported for every step and don't change
+     * acquired queries.
+     *
+     * @param instances
+     * @param stepsNum
+     * @return
+     * @throws Exception
+     */
+    public boolean metricsTest(Instances instances, int stepsNum) throws Exception {
+        int batchSize = instances.numInstances() * (instances.numAttributes() - 1) / 100 + 1;
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(instances, PERCENTS, new Random(SEED));
+        QueryManager queryManager = new SimpleQueryManager(instances);
+
+        AFABandit plain = new AFABandit(trainMissing, queryManager, batchSize);
+        AFABandit measured = new AFABandit(trainMissing, queryManager, batchSize);
+        StepMetrics metrics = new StepMetrics();
+        measured.setMetricsListener(metrics);
+
+        List<Pair<List<Pair<Integer, Integer>>, J48>> res = plain.perform(stepsNum);
+        List<Pair<List<Pair<Integer, Integer>>, J48>> measuredRes = measured.perform(stepsNum);
+        if (res.size() != measuredRes.size()) {
+            System.out.println("steps");
+            return false;
+        }
+        for (int k = 0; k < res.size(); ++k) {
+            if (!res.get(k).first.equals(measuredRes.get(k).first)) {
+                System.out.println("queries");
+                return false;
+            }
+        }
+
+        if (metrics.getCount("STEP") != res.size()
+                || metrics.getCount(MetricsListener.Phase.SCORING.name()) != res.size()
+                || metrics.getCount(MetricsListener.Phase.CLASSIFIER_BUILD.name()) != res.size() + 1) {
+            System.out.println("counts");
+            return false;
+        }
+
+        File file = File.createTempFile("afa", "-METRICS.csv");
+        try {
+            metrics.writeCsv(file);
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                if (!StepMetrics.HEADER.equals(reader.readLine()) || reader.readLine() == null) {
+                    System.out.println("csv");
+                    return false;
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        System.out.print(metrics);
+        return true;
+    }
+
+    /**
+     * Check that instances read from the snapshot of DatasetCache are the
+     * same as the parsed ones.
+     *
+     * @param dataset
+     * @return
+     * @throws Exception
+     */
+    public boolean datasetCacheTest(Dataset dataset) throws Exception {
+        Instances parsed = new ConverterUtils.DataSource(dataset.getFile().getPath()).getDataSet();
+        DatasetCache.getInstances(dataset.getFile()); // writes the snapshot if there is none
+        Instances cached = DatasetCache.getInstances(dataset.getFile());
+
+        if (parsed.numInstances() != cached.numInstances() || parsed.numAttributes() != cached.numAttributes()
+                || parsed.classIndex() != cached.classIndex()) {
+            System.out.println("size");
+            return false;
+        }
+        for (int j = 0; j < parsed.numAttributes(); ++j) {
+            Attribute attr = parsed.attribute(j);
+            Attribute cachedAttr = cached.attribute(j);
+            if (!attr.name().equals(cachedAttr.name()) || attr.numValues() != cachedAttr.numValues()) {
+                System.out.println("attribute " + j);
+                return false;
+            }
+            for (int k = 0; k < attr.numValues(); ++k) {
+                if (!attr.value(k).equals(cachedAttr.value(k))) {
+                    System.out.println("attribute " + j + ", value " + k);
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < parsed.numInstances(); ++i) {
+            if (!Arrays.equals(parsed.instance(i).toDoubleArray(), cached.instance(i).toDoubleArray())
+                    || parsed.instance(i).weight() != cached.instance(i).weight()) {
+                System.out.println("instance " + i);
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void analyzeDataset() throws Exception {
         for (int i = 0; i < dataSets.size(); ++i) {
             Instances instances = dataSets.get(i).getInstances();
@@ -369,9 +1125,18 @@ public class DatasetTest {
         //
 //        int alpha = (instances.numInstances()) * (instances.numAttributes() - 1) / batchSize; // todo full
         int alpha = 10; // todo
-        Map<Integer, List<Double>> numToAccMapSEU =
-                DatasetFactory.seuUniformSamplingGetLerningCurve(instances, runsNum, seed, folds, PERCENTS, batchSize, alpha);
-        return new Pair(numToAccMapSEU, String.format("SEU-USalpha=%s-runs=%s-folds=%s-%s-%s", alpha, runsNum, folds, ALL_RUNS, suffixNum));
+        String name = String.format("SEU-USalpha=%s-runs=%s-folds=%s-%s-%s", alpha, runsNum, folds, ALL_RUNS, suffixNum);
+        try (ResultSink sink = new ResultSink(getPointsFile(datasetName, name))) {
+            StepMetrics metrics = new StepMetrics();
+            LearningCurveEngine engine = new LearningCurveEngine(LearningCurveEngine.getDefaultParallelism());
+            engine.setResultSink(sink);
+            engine.setMetricsListener(metrics);
+            Map<Integer, List<Double>> numToAccMapSEU = engine.getLearningCurve(instances, runsNum, seed, folds,
+                    PERCENTS, true, DatasetFactory.seuUniformSamplingFactory(instances, batchSize, alpha));
+            metrics.writeCsv(getMetricsFile(datasetName, name));
+            System.out.print(metrics);
+            return new Pair(numToAccMapSEU, name);
+        }
         //
         // seu error sampling
         /*
@@ -388,6 +1153,69 @@ public class DatasetTest {
         */
     }
 
+    /**
+     * The same experiments as massiveTest(..) (all methods) for every dataset,
+     * computed by 'workersNum' worker JVMs, results are written by
+     * writeMethodResult(..).
+     *
+     * @param datasets
+     * @param workersNum
+     * @throws Exception
+     */
+    public void shardedMassiveTest(List<Dataset> datasets, int workersNum) throws Exception {
+        int seed = 137;
+
+        int runsNum = 6;
+        int folds = 10;
+        double coef = (folds - 1) / (double) folds;
+
+        Random r = new Random(System.currentTimeMillis());
+        int suffixNum = r.nextInt(10000);
+
+        ExperimentCoordinator coordinator = new ExperimentCoordinator(new File(RES_PATH + "shards"), workersNum, 3,
+                Collections.singletonList("-Xmx2g"));
+        for (Dataset dataset : datasets) {
+            Instances instances = dataset.getInstances();
+            instances.setClassIndex(instances.numAttributes() - 1);
+            int batchSize = (int) (coef * (instances.numInstances()) * (instances.numAttributes() - 1) / 100.0); // todo 1/50 of possible queries
+            int alpha = 10; // todo
+            int euParam = instances.numInstances() / 10; // todo
+
+            coordinator.addExperiment(new ExperimentCoordinator.Experiment(dataset, instances,
+                    ExperimentCoordinator.Method.RANDOM_AFA, batchSize, 0, runsNum, seed, folds, PERCENTS,
+                    String.format("RandomAFA-runs=%s-folds=%s-%s-%s", runsNum, folds, ALL_RUNS, suffixNum)));
+            coordinator.addExperiment(new ExperimentCoordinator.Experiment(dataset, instances,
+                    ExperimentCoordinator.Method.AFA_BANDIT, batchSize, 0, runsNum, seed, folds, PERCENTS,
+                    String.format("AFABandit-Attr--runs=%s-folds=%s-%s-%s", runsNum, folds, ALL_RUNS, suffixNum)));
+            coordinator.addExperiment(new ExperimentCoordinator.Experiment(dataset, instances,
+                    ExperimentCoordinator.Method.SEU_US, batchSize, alpha, runsNum, seed, folds, PERCENTS,
+                    String.format("SEU-USalpha=%s-runs=%s-folds=%s-%s-%s", alpha, runsNum, folds, ALL_RUNS, suffixNum)));
+            coordinator.addExperiment(new ExperimentCoordinator.Experiment(dataset, instances,
+                    ExperimentCoordinator.Method.SEU_ES, batchSize, euParam, runsNum, seed, folds, PERCENTS,
+                    String.format("SEU-ESparam=%s-runs=%s-folds=%s-%s-%s", euParam, runsNum, folds, ALL_RUNS, suffixNum)));
+        }
+
+        for (Map.Entry<ExperimentCoordinator.Experiment, Map<Integer, List<Double>>> entry
+                : coordinator.run().entrySet()) {
+            writeMethodResult(new Pair<>(entry.getValue(), entry.getKey().getResultName()),
+                    entry.getKey().getDatasetName());
+        }
+    }
+
+    /**
+     * File of points appended while the experiment is running (see ResultSink).
+     */
+    public File getPointsFile(String datasetName, String methodName) {
+        return new File(RES_PATH + datasetName + "_" + methodName + "-POINTS.csv");
+    }
+
+    /**
+     * File of histograms of step metrics of the experiment (see StepMetrics).
+     */
+    public File getMetricsFile(String datasetName, String methodName) {
+        return new File(RES_PATH + datasetName + "_" + methodName + "-METRICS.csv");
+    }
+
     public void plotMethodResults(List<Pair<Map<Integer, Double>, String>> methodResults, String datasetName) {
         LineChart.run(methodResults, datasetName, "% заполненных ячеек", "Точность (%)");
     }
@@ -0,0 +1,130 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Discretized copy of instances which is updated cell by cell.
+ *
+ * Discretize keeps cut points of its first batch, so filtering of the
+ * instances after some values were acquired differs from the previous
+ * result only in the acquired cells. The mirror maps a value of a numeric
+ * attribute to the first bin whose cut point is not less than the value
+ * (bin 0 if the attribute has no cut points), the same as Discretize does,
+ * and copies values of other attributes.
+ *
+ * If cut points are refit, the instances are filtered again with cut points
+ * fitted on the current instances at every refresh().
+ */
+public class DiscretizedMirror {
+    private final Instances instances; // source instances
+    private Discretize discretizer;
+    private boolean refit; // whether cut points are fitted again at every refresh()
+
+    private Instances discInstances;
+    private double[][] cutPoints; // by attribute, null if the attribute isn't discretized
+
+    /**
+     * @param instances source instances, values of which are set by setValue(..)
+     * @param discretizer fitted one or not, in the last case it is fitted on 'instances'
+     * @throws Exception
+     */
+    public DiscretizedMirror(Instances instances, Discretize discretizer) throws Exception {
+        if (discretizer.getMakeBinary()) {
+            throw new IllegalArgumentException("Discretizer making binary attributes isn't supported");
+        }
+
+        this.instances = instances;
+        this.discretizer = discretizer;
+        filter();
+    }
+
+    private void filter() throws Exception {
+        discInstances = Filter.useFilter(instances, discretizer);
+
+        cutPoints = new double[instances.numAttributes()][];
+        for (int j = 0; j < instances.numAttributes(); ++j) {
+            if (instances.attribute(j).isNumeric() && discInstances.attribute(j).isNominal()) {
+                double[] points = discretizer.getCutPoints(j);
+                cutPoints[j] = points == null ? new double[0] : points;
+            }
+        }
+    }
+
+    /**
+     * @return discretized instances, the same object until cut points are refit
+     */
+    public Instances getInstances() {
+        return discInstances;
+    }
+
+    public Discretize getDiscretizer() {
+        return discretizer;
+    }
+
+    public void setRefit(boolean refit) {
+        this.refit = refit;
+    }
+
+    /**
+     * Fit cut points on the current instances and filter them again if cut
+     * points are refit, nothing otherwise.
+     *
+     * @return discretized instances
+     * @throws Exception
+     */
+    public Instances refresh() throws Exception {
+        if (refit) {
+            Discretize fresh = (Discretize) Filter.makeCopy(discretizer);
+            fresh.setInputFormat(instances);
+            discretizer = fresh;
+            filter();
+        }
+        return discInstances;
+    }
+
+    /**
+     * Set discretized 'value' to the cell, the value itself is set to the
+     * source instances by the caller.
+     *
+     * @param instIndex
+     * @param attrIndex
+     * @param value value of the source attribute
+     */
+    public void setValue(int instIndex, int attrIndex, double value) {
+        Instance inst = discInstances.instance(instIndex);
+        if (Instance.isMissingValue(value)) {
+            inst.setMissing(attrIndex);
+        } else {
+            inst.setValue(attrIndex, discretize(attrIndex, value));
+        }
+    }
+
+    /**
+     * Set all values from the source instances again, e.g. after they were
+     * restored from a checkpoint.
+     */
+    public void sync() {
+        for (int i = 0; i < instances.numInstances(); ++i) {
+            Instance inst = instances.instance(i);
+            for (int j = 0; j < instances.numAttributes(); ++j) {
+                setValue(i, j, inst.value(j));
+            }
+        }
+    }
+
+    private double discretize(int attrIndex, double value) {
+        double[] points = cutPoints[attrIndex];
+        if (points == null) {
+            return value;
+        }
+
+        int bin = 0;
+        while (bin < points.length && value > points[bin]) {
+            ++bin;
+        }
+        return bin;
+    }
+}
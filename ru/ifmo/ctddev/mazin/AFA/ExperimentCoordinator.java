@@ -0,0 +1,364 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instances;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Runs learning curve experiments in worker JVMs on the local machine.
+ *
+ * The (experiment, run, fold) grid is split into shards, every shard is
+ * computed by a separate worker JVM (see main(..)) which writes the curve of
+ * its fold into a file of the work directory. At most 'workersNum' workers
+ * run at once. A worker which crashed or exited without a curve is started
+ * again (at most 'maxAttempts' times) and continues from the checkpoint of
+ * its last done step. Shards whose curves are already in the work directory
+ * are not computed again, so an interrupted experiment can be continued. When all shards are done, curves are merged exactly the way
+ * LearningCurveEngine merges them.
+ */
+public class ExperimentCoordinator {
+    public static final String WORKER = "worker";
+
+    private static final long POLL_MILLIS = 500;
+    private static final String CURVE_EXT = ".curve";
+
+    private final File workDir;
+    private final int workersNum;
+    private final int maxAttempts;
+    private final List<String> jvmArgs; // extra arguments of worker JVMs (e.g. -Xmx)
+    private final List<Experiment> experiments = new ArrayList<>();
+
+    /**
+     * AFA methods which can be run by workers.
+     */
+    public enum Method {
+        RANDOM_AFA("RandomAFA", false),
+        AFA_BANDIT("AFABandit", false),
+        SEU_US("SEU-US", true),
+        SEU_ES("SEU-ES", true);
+
+        private final String name;
+        private final boolean isLogged;
+
+        Method(String name, boolean isLogged) {
+            this.name = name;
+            this.isLogged = isLogged;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @param instances
+         * @param batchSize
+         * @param param alpha of SEU-US, esParam of SEU-ES, ignored otherwise
+         * @return
+         * @throws Exception
+         */
+        LearningCurveEngine.MethodFactory makeFactory(Instances instances, int batchSize, int param) throws Exception {
+            switch (this) {
+                case RANDOM_AFA:
+                    return DatasetFactory.randomAFAFactory(batchSize);
+                case AFA_BANDIT:
+                    return DatasetFactory.afaBanditFactory(batchSize);
+                case SEU_US:
+                    return DatasetFactory.seuUniformSamplingFactory(instances, batchSize, param);
+                case SEU_ES:
+                    return DatasetFactory.seuErrorSamplingFactory(instances, batchSize, param);
+                default:
+                    throw new IllegalArgumentException("Unknown method: " + this);
+            }
+        }
+    }
+
+    /**
+     * Learning curve of one method on one dataset.
+     */
+    public static class Experiment {
+        private final String datasetName;
+        private final File datasetFile;
+        private final int allQueriesNum;
+        private final Method method;
+        private final int batchSize;
+        private final int param;
+        private final int runsNum;
+        private final int seed;
+        private final int folds;
+        private final double percents;
+        private final String resultName;
+
+        /**
+         * @param dataset
+         * @param instances instances of the dataset with class index set to the last attribute
+         * @param method
+         * @param batchSize
+         * @param param alpha of SEU-US, esParam of SEU-ES, ignored otherwise
+         * @param runsNum
+         * @param seed
+         * @param folds
+         * @param percents percent of missing values
+         * @param resultName name of the result (as in DatasetTest.massiveTest(..))
+         */
+        public Experiment(Dataset dataset,
+                          Instances instances,
+                          Method method,
+                          int batchSize,
+                          int param,
+                          int runsNum,
+                          int seed,
+                          int folds,
+                          double percents,
+                          String resultName) {
+            this.datasetName = dataset.getName();
+            this.datasetFile = dataset.getFile();
+            this.allQueriesNum = LearningCurveEngine.getAllQueriesNum(instances, folds);
+            this.method = method;
+            this.batchSize = batchSize;
+            this.param = param;
+            this.runsNum = runsNum;
+            this.seed = seed;
+            this.folds = folds;
+            this.percents = percents;
+            this.resultName = resultName;
+        }
+
+        public String getDatasetName() {
+            return datasetName;
+        }
+
+        public String getResultName() {
+            return resultName;
+        }
+
+        /**
+         * Name of the directory with curves of the experiment, depends only on
+         * the arguments and the properties forwarded to workers which change
+         * the curves (properties are added only if they aren't default).
+         */
+        String getTag() {
+            StringBuilder tag = new StringBuilder(String.format("%s_%s-batch=%s-param=%s-seed=%s-folds=%s-percents=%s",
+                    datasetName, method.getName(), batchSize, param, seed, folds, percents));
+            if (Boolean.getBoolean(LearningCurveEngine.PIPELINED_PROPERTY)) {
+                tag.append("-pipelined"); // queries are selected with the classifier of the previous step
+            }
+            long stepBudget = Long.getLong(LearningCurveEngine.STEP_BUDGET_PROPERTY, 0);
+            if (stepBudget > 0) {
+                tag.append("-budget=").append(stepBudget); // not all candidates are scored
+            }
+            if (Boolean.getBoolean(LearningCurveEngine.RACING_PROPERTY)) {
+                tag.append("-racing"); // losers are dropped on a sample of instances
+            }
+            return tag.toString();
+        }
+    }
+
+    private static class Shard {
+        final Experiment experiment;
+        final int run;
+        final int fold;
+        final File curveFile;
+        final File logFile;
+        int attempts = 0;
+
+        Shard(Experiment experiment, int run, int fold, File dir) {
+            this.experiment = experiment;
+            this.run = run;
+            this.fold = fold;
+            this.curveFile = new File(dir, String.format("run=%s-fold=%s%s", run, fold, CURVE_EXT));
+            this.logFile = new File(dir, String.format("run=%s-fold=%s.log", run, fold));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, run = %s, fold = %s", experiment.getTag(), run, fold);
+        }
+    }
+
+    public ExperimentCoordinator(File workDir, int workersNum, int maxAttempts, List<String> jvmArgs) {
+        if (workersNum < 1) {
+            throw new IllegalArgumentException("'workersNum' should be > 0");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("'maxAttempts' should be > 0");
+        }
+
+        this.workDir = workDir;
+        this.workersNum = workersNum;
+        this.maxAttempts = maxAttempts;
+        this.jvmArgs = new ArrayList<>(jvmArgs);
+    }
+
+    public void addExperiment(Experiment experiment) {
+        experiments.add(experiment);
+    }
+
+    /**
+     * Compute all shards of added experiments and merge them.
+     *
+     * @return map: experiment -> (percent of known values -> average accuracy
+     *         over folds for each run), in order of adding
+     * @throws Exception if a shard failed 'maxAttempts' times
+     */
+    public Map<Experiment, Map<Integer, List<Double>>> run() throws Exception {
+        Deque<Shard> pending = new ArrayDeque<>();
+        Map<Experiment, List<Shard>> shardsByExperiment = new LinkedHashMap<>();
+        for (Experiment experiment : experiments) {
+            File dir = new File(workDir, experiment.getTag());
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create directory " + dir);
+            }
+
+            List<Shard> shards = new ArrayList<>();
+            for (int i = 0; i < experiment.runsNum; ++i) {
+                for (int j = 0; j < experiment.folds; ++j) {
+                    Shard shard = new Shard(experiment, i, j, dir);
+                    shards.add(shard);
+                    if (!shard.curveFile.exists()) {
+                        pending.add(shard);
+                    }
+                }
+            }
+            shardsByExperiment.put(experiment, shards);
+        }
+
+        System.out.println(String.format("Shards to compute: %s", pending.size()));
+        runShards(pending);
+
+        Map<Experiment, Map<Integer, List<Double>>> res = new LinkedHashMap<>();
+        for (Map.Entry<Experiment, List<Shard>> entry : shardsByExperiment.entrySet()) {
+            Experiment experiment = entry.getKey();
+            List<List<Pair<Integer, Double>>> curves = new ArrayList<>();
+            for (Shard shard : entry.getValue()) {
+                curves.add(Checkpoint.readCurve(shard.curveFile));
+            }
+            res.put(experiment, LearningCurveEngine.mergeFoldCurves(curves,
+                    experiment.runsNum, experiment.folds, experiment.allQueriesNum));
+        }
+
+        return res;
+    }
+
+    private void runShards(Deque<Shard> pending) throws Exception {
+        Map<Shard, Process> running = new LinkedHashMap<>();
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                while (running.size() < workersNum && !pending.isEmpty()) {
+                    Shard shard = pending.poll();
+                    ++shard.attempts;
+                    running.put(shard, startWorker(shard));
+                }
+
+                Thread.sleep(POLL_MILLIS);
+
+                Iterator<Map.Entry<Shard, Process>> it = running.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Shard, Process> entry = it.next();
+                    if (entry.getValue().isAlive()) {
+                        continue;
+                    }
+                    it.remove();
+
+                    Shard shard = entry.getKey();
+                    int exitValue = entry.getValue().exitValue();
+                    if (exitValue == 0 && shard.curveFile.exists()) {
+                        System.out.println(String.format("Done: %s", shard));
+                    } else if (shard.attempts < maxAttempts) {
+                        System.out.println(String.format("Worker failed (exit value = %s), rescheduled: %s",
+                                exitValue, shard));
+                        pending.add(shard);
+                    } else {
+                        throw new IOException(String.format("Worker failed %s times: %s, see %s",
+                                shard.attempts, shard, shard.logFile));
+                    }
+                }
+            }
+        } finally {
+            for (Process process : running.values()) {
+                process.destroy();
+            }
+        }
+    }
+
+    private Process startWorker(Shard shard) throws IOException {
+        Experiment experiment = shard.experiment;
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / workersNum);
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-D" + TaskScheduler.PARALLELISM_PROPERTY + "=" + parallelism);
+        for (String property : new String[]{LearningCurveEngine.ORACLE_LATENCY_PROPERTY,
+                                            LearningCurveEngine.PIPELINED_PROPERTY,
+                                            LearningCurveEngine.STEP_BUDGET_PROPERTY,
+                                            LearningCurveEngine.RACING_PROPERTY}) {
+            String value = System.getProperty(property);
+            if (value != null) {
+                command.add("-D" + property + "=" + value);
+            }
+        }
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ExperimentCoordinator.class.getName());
+        command.add(WORKER);
+        command.add(experiment.datasetName);
+        command.add(experiment.datasetFile.getAbsolutePath());
+        command.add(experiment.method.name());
+        command.add(String.valueOf(experiment.batchSize));
+        command.add(String.valueOf(experiment.param));
+        command.add(String.valueOf(experiment.seed));
+        command.add(String.valueOf(experiment.folds));
+        command.add(String.valueOf(experiment.percents));
+        command.add(String.valueOf(shard.run));
+        command.add(String.valueOf(shard.fold));
+        command.add(shard.curveFile.getAbsolutePath());
+
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(shard.logFile))
+                .start();
+    }
+
+    /**
+     * Worker: worker datasetName datasetFile method batchSize param seed folds
+     * percents run fold curveFile
+     */
+    public static void main(String[] args) {
+        if (args.length != 12 || !WORKER.equals(args[0])) {
+            System.err.println("Usage: " + WORKER + " datasetName datasetFile method batchSize param seed folds "
+                    + "percents run fold curveFile");
+            System.exit(2);
+        }
+
+        try {
+            Instances instances = new Dataset(args[1], new File(args[2]), null).getInstances();
+            if (instances == null) {
+                System.exit(1);
+            }
+            instances.setClassIndex(instances.numAttributes() - 1);
+
+            Method method = Method.valueOf(args[3]);
+            int batchSize = Integer.parseInt(args[4]);
+            int param = Integer.parseInt(args[5]);
+            int seed = Integer.parseInt(args[6]);
+            int folds = Integer.parseInt(args[7]);
+            double percents = Double.parseDouble(args[8]);
+            int run = Integer.parseInt(args[9]);
+            int fold = Integer.parseInt(args[10]);
+
+            // a restarted worker continues from the checkpoint of the previous attempt
+            File curveFile = new File(args[11]);
+            File checkpointFile = new File(curveFile.getPath() + ".ckpt");
+            List<Pair<Integer, Double>> curve = LearningCurveEngine.getFoldCurve(instances, seed, run, folds, fold,
+                    percents, method.isLogged, method.makeFactory(instances, batchSize, param), checkpointFile);
+            Checkpoint.writeCurve(curve, curveFile);
+            Files.deleteIfExists(checkpointFile.toPath());
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instances;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Train and test sets of one fold of cross-validation as rows of shared
+ * base instances.
+ *
+ * getStratifiedOrder(..) gives the rows in the same order as copy of the
+ * base instances after randomize(random) and stratify(folds), and train and
+ * test rows of a fold are the ones of trainCV(folds, fold) and
+ * testCV(folds, fold) of it. Base instances are never modified, train and
+ * test sets are made only when they are needed, and their instances share
+ * values with the base ones.
+ */
+public class FoldView {
+    private final Instances base;
+    private final int[] order; // rows of 'base' after randomization and stratification, shared by folds of a run
+    private final int testFrom; // test rows are order[testFrom, testTo)
+    private final int testTo;
+
+    /**
+     * @param base
+     * @param order rows of 'base' returned by getStratifiedOrder(..)
+     * @param folds
+     * @param fold
+     */
+    public FoldView(Instances base, int[] order, int folds, int fold) {
+        int n = order.length;
+        if (folds < 2) {
+            throw new IllegalArgumentException("Number of folds must be at least 2!");
+        }
+        if (folds > n) {
+            throw new IllegalArgumentException("Can't have more folds than instances!");
+        }
+        if (fold < 0 || fold >= folds) {
+            throw new IllegalArgumentException("'fold' should be in [0, folds)");
+        }
+
+        // the same bounds as of Instances.testCV(..)
+        int foldSize = n / folds;
+        int offset;
+        if (fold < n % folds) {
+            ++foldSize;
+            offset = fold;
+        } else {
+            offset = n % folds;
+        }
+
+        this.base = base;
+        this.order = order;
+        this.testFrom = fold * (n / folds) + offset;
+        this.testTo = testFrom + foldSize;
+    }
+
+    /**
+     * Rows of 'base' in order of its copy after randomize(random) and
+     * stratify(folds) (instances of the same class are grouped together
+     * by swaps and then taken with step 'folds').
+     *
+     * @param base
+     * @param random
+     * @param folds
+     * @return
+     */
+    public static int[] getStratifiedOrder(Instances base, Random random, int folds) {
+        if (folds <= 1) {
+            throw new IllegalArgumentException("Number of folds must be greater than 1");
+        }
+
+        int n = base.numInstances();
+        int[] rows = new int[n];
+        for (int i = 0; i < n; ++i) {
+            rows[i] = i;
+        }
+
+        // Instances.randomize(..)
+        for (int j = n - 1; j > 0; --j) {
+            swap(rows, j, random.nextInt(j + 1));
+        }
+
+        if (!base.classAttribute().isNominal()) {
+            return rows;
+        }
+
+        // Instances.stratify(..): grouping by class
+        double[] classValues = new double[n];
+        for (int i = 0; i < n; ++i) {
+            classValues[i] = base.instance(rows[i]).classValue();
+        }
+        int index = 1;
+        while (index < n) {
+            double classValue = classValues[index - 1];
+            for (int j = index; j < n; ++j) {
+                if (classValues[j] == classValue || Double.isNaN(classValue) && Double.isNaN(classValues[j])) {
+                    swap(rows, index, j);
+                    swap(classValues, index, j);
+                    ++index;
+                }
+            }
+            ++index;
+        }
+
+        // Instances.stratStep(..)
+        int[] res = new int[n];
+        int size = 0;
+        for (int start = 0; size < n; ++start) {
+            for (int j = start; j < n; j += folds) {
+                res[size++] = rows[j];
+            }
+        }
+        return res;
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
+    private static void swap(double[] array, int i, int j) {
+        double tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
+    public Instances getBase() {
+        return base;
+    }
+
+    /**
+     * @return rows of 'base' of the train set, in order of trainCV(..)
+     */
+    public int[] getTrainRows() {
+        int[] res = new int[order.length - (testTo - testFrom)];
+        System.arraycopy(order, 0, res, 0, testFrom);
+        System.arraycopy(order, testTo, res, testFrom, order.length - testTo);
+        return res;
+    }
+
+    /**
+     * @return rows of 'base' of the test set, in order of testCV(..)
+     */
+    public int[] getTestRows() {
+        return Arrays.copyOfRange(order, testFrom, testTo);
+    }
+
+    /**
+     * @return new train set, the same as trainCV(..) gives
+     */
+    public Instances getTrain() {
+        return select(getTrainRows());
+    }
+
+    /**
+     * @return new test set, the same as testCV(..) gives
+     */
+    public Instances getTest() {
+        return select(getTestRows());
+    }
+
+    private Instances select(int[] rows) {
+        Instances res = new Instances(base, rows.length);
+        for (int row : rows) {
+            res.add(base.instance(row)); // copy shares values with the base instance
+        }
+        return res;
+    }
+}
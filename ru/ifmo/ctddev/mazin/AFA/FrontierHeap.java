@@ -0,0 +1,83 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.util.Arrays;
+
+/**
+ * Max-heap of (bound, entry) pairs on two primitive arrays, entry is a long
+ * which encodes whatever the caller needs. Arrays grow when needed and are
+ * reused after clear(), so a search allocates nothing once they are big
+ * enough.
+ */
+public class FrontierHeap {
+    private double[] bounds = new double[16];
+    private long[] entries = new long[16];
+    private int size;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the largest bound, the heap must not be empty
+     */
+    public double maxBound() {
+        return bounds[0];
+    }
+
+    public void push(double bound, long entry) {
+        if (size == bounds.length) {
+            bounds = Arrays.copyOf(bounds, 2 * size);
+            entries = Arrays.copyOf(entries, 2 * size);
+        }
+
+        int k = size++;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (bounds[parent] >= bound) {
+                break;
+            }
+            bounds[k] = bounds[parent];
+            entries[k] = entries[parent];
+            k = parent;
+        }
+        bounds[k] = bound;
+        entries[k] = entry;
+    }
+
+    /**
+     * Remove the entry with the largest bound.
+     *
+     * @return the entry, the heap must not be empty
+     */
+    public long poll() {
+        long res = entries[0];
+        double bound = bounds[--size];
+        long entry = entries[size];
+
+        int k = 0;
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && bounds[child + 1] > bounds[child]) {
+                ++child;
+            }
+            if (bounds[child] <= bound) {
+                break;
+            }
+            bounds[k] = bounds[child];
+            entries[k] = entries[child];
+            k = child;
+        }
+        if (size > 0) {
+            bounds[k] = bound;
+            entries[k] = entry;
+        }
+        return res;
+    }
+}
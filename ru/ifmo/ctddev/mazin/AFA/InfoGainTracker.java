@@ -0,0 +1,201 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.attributeSelection.InfoGainAttributeEval;
+import weka.core.ContingencyTables;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+
+/**
+ * Information gain of attributes with respect to the class, maintained
+ * incrementally while missing values are acquired.
+ *
+ * For every nominal attribute a value/class contingency table (with an extra
+ * row for missing values) is kept and updated in O(1) when a value is
+ * acquired. Info gain is computed from the table exactly as
+ * InfoGainAttributeEval does (missing values are distributed over the
+ * table), and only for attributes changed since the last evaluation.
+ *
+ * Numeric attributes are discretized by InfoGainAttributeEval with cut points
+ * depending on all their values, so they are re-evaluated by
+ * InfoGainAttributeEval on the numeric attributes only, once per refresh and
+ * only if some of their values were acquired.
+ *
+ * Assumed that class attribute is the last one.
+ */
+public class InfoGainTracker {
+    private final Instances instances;
+    private final int m; // number of attributes (features)
+    private final int numClasses;
+
+    private final double[][][] counts; // [attr][value or missing][class or missing], null for numeric attrs
+    private final double[] infoGains;
+    private final boolean[] isDirty; // info gain of attribute has to be recomputed
+
+    private final int[] numericAttrsIndexes;
+    private boolean isNumericDirty;
+
+    public InfoGainTracker(Instances instances) {
+        this.instances = instances;
+        m = instances.numAttributes() - 1;
+        numClasses = instances.numClasses();
+
+        counts = new double[m][][];
+        infoGains = new double[m];
+        isDirty = new boolean[m];
+
+        int numericNum = 0;
+        for (int j = 0; j < m; ++j) {
+            if (instances.attribute(j).isNumeric()) {
+                ++numericNum;
+            } else {
+                counts[j] = new double[instances.attribute(j).numValues() + 1][numClasses + 1];
+                isDirty[j] = true;
+            }
+        }
+
+        numericAttrsIndexes = new int[numericNum];
+        for (int j = 0, k = 0; j < m; ++j) {
+            if (counts[j] == null) {
+                numericAttrsIndexes[k++] = j;
+            }
+        }
+        isNumericDirty = numericNum > 0;
+
+        for (int i = 0; i < instances.numInstances(); ++i) {
+            Instance inst = instances.instance(i);
+            int classColumn = getClassColumn(inst);
+            for (int j = 0; j < m; ++j) {
+                if (counts[j] != null) {
+                    counts[j][getValueRow(inst, j)][classColumn] += inst.weight();
+                }
+            }
+        }
+    }
+
+    /**
+     * Update tables after missing value (instIndex, attrIndex) was set in the
+     * instances.
+     */
+    public void valueAcquired(int instIndex, int attrIndex) {
+        if (counts[attrIndex] == null) {
+            isNumericDirty = true;
+            return;
+        }
+
+        Instance inst = instances.instance(instIndex);
+        int classColumn = getClassColumn(inst);
+        double[][] attrCounts = counts[attrIndex];
+        attrCounts[attrCounts.length - 1][classColumn] -= inst.weight();
+        attrCounts[getValueRow(inst, attrIndex)][classColumn] += inst.weight();
+
+        isDirty[attrIndex] = true;
+    }
+
+    /**
+     * Returns info gain of the attribute, the same as
+     * InfoGainAttributeEval.evaluateAttribute(..) built on current instances.
+     */
+    public double evaluateAttribute(int attrIndex) throws Exception {
+        if (counts[attrIndex] == null) {
+            if (isNumericDirty) {
+                evaluateNumericAttributes();
+            }
+        } else if (isDirty[attrIndex]) {
+            infoGains[attrIndex] = computeInfoGain(counts[attrIndex]);
+            isDirty[attrIndex] = false;
+        }
+
+        return infoGains[attrIndex];
+    }
+
+    private int getValueRow(Instance inst, int attrIndex) {
+        return inst.isMissing(attrIndex) ? counts[attrIndex].length - 1 : (int) inst.value(attrIndex);
+    }
+
+    private int getClassColumn(Instance inst) {
+        return inst.classIsMissing() ? numClasses : (int) inst.classValue();
+    }
+
+    /**
+     * Info gain of contingency table with missing values distributed the same
+     * way as InfoGainAttributeEval.buildEvaluator(..) does.
+     */
+    private double computeInfoGain(double[][] attrCounts) {
+        int numValues = attrCounts.length - 1;
+        double[][] table = attrCounts;
+
+        // Compute marginals
+        double[] rowSums = new double[numValues];
+        double[] columnSums = new double[numClasses];
+        double sum = 0;
+        for (int i = 0; i < numValues; i++) {
+            for (int j = 0; j < numClasses; j++) {
+                rowSums[i] += attrCounts[i][j];
+                columnSums[j] += attrCounts[i][j];
+            }
+            sum += rowSums[i];
+        }
+
+        if (Utils.gr(sum, 0)) {
+            double[][] additions = new double[numValues][numClasses];
+
+            // Compute what needs to be added to each row
+            for (int i = 0; i < numValues; i++) {
+                for (int j = 0; j < numClasses; j++) {
+                    additions[i][j] = (rowSums[i] / sum) * attrCounts[numValues][j];
+                }
+            }
+
+            // Compute what needs to be added to each column
+            for (int i = 0; i < numClasses; i++) {
+                for (int j = 0; j < numValues; j++) {
+                    additions[j][i] += (columnSums[i] / sum) * attrCounts[j][numClasses];
+                }
+            }
+
+            // Compute what needs to be added to each cell
+            for (int i = 0; i < numClasses; i++) {
+                for (int j = 0; j < numValues; j++) {
+                    additions[j][i] += (attrCounts[j][i] / sum) * attrCounts[numValues][numClasses];
+                }
+            }
+
+            // Make new contingency table
+            table = new double[numValues][numClasses];
+            for (int i = 0; i < numValues; i++) {
+                for (int j = 0; j < numClasses; j++) {
+                    table[i][j] = attrCounts[i][j] + additions[i][j];
+                }
+            }
+        }
+
+        return ContingencyTables.entropyOverColumns(table) - ContingencyTables.entropyConditionedOnRows(table);
+    }
+
+    /**
+     * Run InfoGainAttributeEval on numeric attributes and class attribute only.
+     */
+    private void evaluateNumericAttributes() throws Exception {
+        int[] indexes = new int[numericAttrsIndexes.length + 1];
+        System.arraycopy(numericAttrsIndexes, 0, indexes, 0, numericAttrsIndexes.length);
+        indexes[numericAttrsIndexes.length] = instances.classIndex();
+
+        Remove remove = new Remove();
+        remove.setAttributeIndicesArray(indexes);
+        remove.setInvertSelection(true);
+        remove.setInputFormat(instances);
+        Instances numericInstances = Filter.useFilter(instances, remove);
+        numericInstances.setClassIndex(numericInstances.numAttributes() - 1);
+
+        InfoGainAttributeEval ig = new InfoGainAttributeEval();
+        ig.buildEvaluator(numericInstances);
+        for (int k = 0; k < numericAttrsIndexes.length; ++k) {
+            infoGains[numericAttrsIndexes[k]] = ig.evaluateAttribute(k);
+        }
+
+        isNumericDirty = false;
+    }
+}
@@ -0,0 +1,62 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * View of shared base instances with a few changed cells.
+ *
+ * Base instances are never modified. When a cell is changed, only its
+ * instance is copied (Instance.copy() shares the values until the first
+ * setValue(..)), so the overlay costs O(changed instances) memory instead of
+ * a copy of the whole dataset.
+ */
+public class InstancesOverlay {
+    private final Instances base;
+    private final Map<Integer, Instance> changed = new HashMap<>(); // copies of changed instances (by index)
+
+    public InstancesOverlay(Instances base) {
+        this.base = base;
+    }
+
+    public Instances getBase() {
+        return base;
+    }
+
+    public int numInstances() {
+        return base.numInstances();
+    }
+
+    /**
+     * Returns changed copy of the instance or base instance, the result
+     * must not be modified.
+     */
+    public Instance instance(int instIndex) {
+        Instance inst = changed.get(instIndex);
+        return inst != null ? inst : base.instance(instIndex);
+    }
+
+    public boolean isChanged(int instIndex) {
+        return changed.containsKey(instIndex);
+    }
+
+    public void setValue(int instIndex, int attrIndex, double value) {
+        getChangedInstance(instIndex).setValue(attrIndex, value);
+    }
+
+    public void setMissing(int instIndex, int attrIndex) {
+        getChangedInstance(instIndex).setMissing(attrIndex);
+    }
+
+    private Instance getChangedInstance(int instIndex) {
+        Instance inst = changed.get(instIndex);
+        if (inst == null) {
+            inst = (Instance) base.instance(instIndex).copy();
+            changed.put(instIndex, inst);
+        }
+        return inst;
+    }
+}
@@ -0,0 +1,58 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a remote oracle: answers of 'source' are returned after
+ * 'latencyMillis' for every request, one query or a batch of them.
+ */
+public class LatencyQueryManager implements BatchQueryManager {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "afa-oracle-latency");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final QueryManager source;
+    private final long latencyMillis; // duration of one round trip
+
+    public LatencyQueryManager(QueryManager source, long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("'latencyMillis' should be >= 0");
+        }
+
+        this.source = source;
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public double getValue(int instanceIndex, int attributeIndex) {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return source.getValue(instanceIndex, attributeIndex);
+    }
+
+    @Override
+    public CompletableFuture<double[]> getValues(List<Pair<Integer, Integer>> queries) {
+        double[] values = new double[queries.size()];
+        int k = 0;
+        for (Pair<Integer, Integer> query : queries) {
+            values[k++] = source.getValue(query.first, query.second);
+        }
+
+        CompletableFuture<double[]> res = new CompletableFuture<>();
+        TIMER.schedule(() -> res.complete(values), latencyMillis, TimeUnit.MILLISECONDS);
+        return res;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+}
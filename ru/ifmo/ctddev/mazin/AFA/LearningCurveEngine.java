@@ -0,0 +1,495 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Learning curves of AFA methods by repeated cross-validation.
+ *
+ * Every (run, fold) is an independent task with its own Random seeded by
+ * (seed, run, fold) and used both for missing values and by the method, so
+ * tasks can run in any order and on any number of threads. Every task
+ * returns its own curve, curves are merged in (run, fold) order after all
+ * tasks are done, so the result for a given seed doesn't depend on the
+ * parallelism.
+ *
+ * If a checkpoint directory is set, every fold is checkpointed after each
+ * step and finished folds are saved, so a killed experiment started again
+ * with the same arguments continues from the last done steps and gives the
+ * same result.
+ */
+public class LearningCurveEngine {
+    public static final String PARALLELISM_PROPERTY = "afa.foldsParallelism";
+    public static final String ORACLE_LATENCY_PROPERTY = "afa.oracleLatencyMillis"; // see LatencyQueryManager
+    public static final String PIPELINED_PROPERTY = "afa.pipelined"; // see AFAMethod.setPipelined(..)
+    public static final String STEP_BUDGET_PROPERTY = "afa.stepBudgetMillis"; // see AFAMethod.setStepBudgetMillis(..)
+    public static final String RACING_PROPERTY = "afa.racing"; // see AFAMethod.setRacing(..)
+
+    private final int parallelism; // number of folds run at once
+    private final File checkpointDir; // checkpoints and curves of folds, null if checkpoints are disabled
+    private ResultSink sink; // points of curves are appended to it as soon as computed, null if none
+    private MetricsListener metrics; // told durations of phases of steps of all folds, null if none
+
+    /**
+     * Makes AFA method for one fold.
+     */
+    interface MethodFactory {
+        /**
+         * Called once before any fold is run with the instances with missing
+         * values of the first fold of the first run (e.g. to fit a filter the
+         * same way the first method would do it).
+         */
+        default void prepare(Instances firstTrainMissing) throws Exception {
+        }
+
+        AFAMethod make(Instances trainMissing, QueryManager queryManager, Random random) throws Exception;
+    }
+
+    /**
+     * Receives points of the curve of a fold as soon as they are computed.
+     */
+    private interface PointListener {
+        void pointAdded(int step, int num, double accuracy) throws IOException;
+    }
+
+    public LearningCurveEngine(int parallelism) {
+        this(parallelism, null);
+    }
+
+    /**
+     * @param parallelism number of folds run at once
+     * @param checkpointDir directory of checkpoints of one experiment (and one setting of properties
+     *                      of methods, see computeFold(..)), null to disable them
+     */
+    public LearningCurveEngine(int parallelism, File checkpointDir) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("'parallelism' should be > 0");
+        }
+
+        this.parallelism = parallelism;
+        this.checkpointDir = checkpointDir;
+    }
+
+    public void setResultSink(ResultSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param metrics listener of methods of all folds, it's called from
+     *                several threads if folds are run in parallel
+     */
+    public void setMetricsListener(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Value of "afa.foldsParallelism" system property, number of available
+     * processors by default.
+     */
+    public static int getDefaultParallelism() {
+        return Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Seed of Random of fold 'fold' of run 'run'.
+     */
+    public static long getTaskSeed(int seed, int run, int fold) {
+        return ((long) seed << 40) ^ ((long) run << 20) ^ fold;
+    }
+
+    /**
+     * Returns map: percent of known values -> average accuracy over folds
+     * for each run.
+     *
+     * @param instances
+     * @param runsNum
+     * @param seed
+     * @param folds
+     * @param percents percent of missing values
+     * @param enableLog
+     * @param factory
+     * @return
+     * @throws Exception the first exception thrown by a fold
+     */
+    public Map<Integer, List<Double>> getLearningCurve(Instances instances,
+                                                       int runsNum,
+                                                       int seed,
+                                                       int folds,
+                                                       double percents,
+                                                       boolean enableLog,
+                                                       MethodFactory factory) throws Exception {
+        int[][] runOrders = new int[runsNum][]; // folds are views of 'instances' by these rows
+        for (int i = 0; i < runsNum; ++i) {
+            runOrders[i] = getRunOrder(instances, seed, i, folds);
+        }
+
+        if (runsNum > 0) {
+            prepare(instances, runOrders[0], seed, folds, percents, factory);
+        }
+        if (checkpointDir != null && !checkpointDir.isDirectory() && !checkpointDir.mkdirs()) {
+            throw new IOException("Can't create directory " + checkpointDir);
+        }
+
+        List<List<Pair<Integer, Double>>> curves = new ArrayList<>(runsNum * folds);
+        if (parallelism == 1) {
+            for (int i = 0; i < runsNum; ++i) {
+                for (int j = 0; j < folds; ++j) {
+                    curves.add(computeFold(new FoldView(instances, runOrders[i], folds, j), seed, i, folds, j,
+                            percents, enableLog, factory));
+                }
+            }
+        } else {
+            ExecutorService execSvc = Executors.newFixedThreadPool(parallelism);
+            try {
+                List<Future<List<Pair<Integer, Double>>>> futures = new ArrayList<>(runsNum * folds);
+                for (int i = 0; i < runsNum; ++i) {
+                    for (int j = 0; j < folds; ++j) {
+                        FoldView view = new FoldView(instances, runOrders[i], folds, j);
+                        int run = i;
+                        int fold = j;
+                        futures.add(execSvc.submit(() ->
+                                computeFold(view, seed, run, folds, fold, percents, enableLog, factory)));
+                    }
+                }
+                for (Future<List<Pair<Integer, Double>>> future : futures) {
+                    curves.add(getResult(future));
+                }
+            } finally {
+                execSvc.shutdownNow();
+            }
+        }
+
+        return mergeFoldCurves(curves, runsNum, folds, getAllQueriesNum(instances, folds));
+    }
+
+    /**
+     * Curve of one fold of one run, the same as the one computed by
+     * getLearningCurve(..) with the same arguments.
+     *
+     * @param instances
+     * @param seed
+     * @param run
+     * @param folds
+     * @param fold
+     * @param percents percent of missing values
+     * @param enableLog
+     * @param factory
+     * @param checkpointFile checkpoint of the fold (see Checkpoint), null to disable it
+     * @return pairs (number of known values, accuracy) by step
+     * @throws Exception
+     */
+    public static List<Pair<Integer, Double>> getFoldCurve(Instances instances,
+                                                           int seed,
+                                                           int run,
+                                                           int folds,
+                                                           int fold,
+                                                           double percents,
+                                                           boolean enableLog,
+                                                           MethodFactory factory,
+                                                           File checkpointFile) throws Exception {
+        prepare(instances, getRunOrder(instances, seed, 0, folds), seed, folds, percents, factory);
+        FoldView view = new FoldView(instances, getRunOrder(instances, seed, run, folds), folds, fold);
+        return runFold(view, seed, run, folds, fold, percents, enableLog, factory, checkpointFile, null, null);
+    }
+
+    /**
+     * Number of queries of a train fold (used to turn number of known values
+     * into percents).
+     */
+    public static int getAllQueriesNum(Instances instances, int folds) {
+        return (int) ((double) (instances.numInstances() * (instances.numAttributes() - 1)) * ((double) (folds - 1) / folds));
+    }
+
+    /**
+     * Merge curves of folds into map: percent of known values -> average
+     * accuracy over folds for each run.
+     *
+     * @param curves curves of folds ordered by (run, fold)
+     * @param runsNum
+     * @param folds
+     * @param allQueriesNum
+     * @return
+     */
+    public static Map<Integer, List<Double>> mergeFoldCurves(List<List<Pair<Integer, Double>>> curves,
+                                                             int runsNum,
+                                                             int folds,
+                                                             int allQueriesNum) {
+        if (curves.size() != runsNum * folds) {
+            throw new IllegalArgumentException("Expected " + runsNum * folds + " curves, got " + curves.size());
+        }
+
+        Map<Integer, List<Double>> numToAccByRuns = new LinkedHashMap<>();
+        for (int i = 0; i < runsNum; ++i) {
+            List<Pair<Integer, List<Double>>> numToAcc = new ArrayList<>();
+            for (int j = 0; j < folds; ++j) {
+                addFoldCurve(numToAcc, curves.get(i * folds + j));
+            }
+            collectInfoFromRun(numToAcc, numToAccByRuns, allQueriesNum);
+        }
+
+        return numToAccByRuns;
+    }
+
+    /**
+     * Rows of 'instances' in order of their copy randomized and stratified
+     * for run 'run' (see FoldView), no copy of the instances is made.
+     */
+    private static int[] getRunOrder(Instances instances, int seed, int run, int folds) {
+        return FoldView.getStratifiedOrder(instances, new Random(seed + run), folds);
+    }
+
+    /**
+     * Call factory.prepare(..) with the same instances as the ones made by
+     * the task of the first fold of the first run.
+     */
+    private static void prepare(Instances instances,
+                                int[] firstRunOrder,
+                                int seed,
+                                int folds,
+                                double percents,
+                                MethodFactory factory) throws Exception {
+        int[] trainRows = new FoldView(instances, firstRunOrder, folds, 0).getTrainRows();
+        factory.prepare(DatasetFactory.makeWithMissingAttrsUniformly(instances, trainRows, percents,
+                new Random(getTaskSeed(seed, 0, 0))));
+    }
+
+    private static List<Pair<Integer, Double>> getResult(Future<List<Pair<Integer, Double>>> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Curve of the fold from the checkpoint directory, computed (with
+     * checkpoints) and saved there if it isn't done yet. Saved curves are
+     * taken whatever the properties of methods (pipelining, step budget,
+     * racing) are, so a checkpoint directory must be used with one setting
+     * of them only.
+     */
+    private List<Pair<Integer, Double>> computeFold(FoldView view,
+                                                    int seed,
+                                                    int run,
+                                                    int folds,
+                                                    int fold,
+                                                    double percents,
+                                                    boolean enableLog,
+                                                    MethodFactory factory) throws Exception {
+        if (checkpointDir == null) {
+            return runFold(view, seed, run, folds, fold, percents, enableLog, factory, null, sink, metrics);
+        }
+
+        File curveFile = new File(checkpointDir, String.format("run=%s-fold=%s.curve", run, fold));
+        if (curveFile.exists()) {
+            return Checkpoint.readCurve(curveFile);
+        }
+
+        File checkpointFile = new File(checkpointDir, String.format("run=%s-fold=%s.ckpt", run, fold));
+        List<Pair<Integer, Double>> curve = runFold(view, seed, run, folds, fold, percents, enableLog, factory,
+                checkpointFile, sink, metrics);
+        Checkpoint.writeCurve(curve, curveFile);
+        Files.deleteIfExists(checkpointFile.toPath());
+        return curve;
+    }
+
+    private static List<Pair<Integer, Double>> runFold(FoldView view,
+                                                       int seed,
+                                                       int run,
+                                                       int folds,
+                                                       int fold,
+                                                       double percents,
+                                                       boolean enableLog,
+                                                       MethodFactory factory,
+                                                       File checkpointFile,
+                                                       ResultSink sink,
+                                                       MetricsListener metrics) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Random random = new Random(getTaskSeed(seed, run, fold));
+
+        int[] trainRows = view.getTrainRows();
+        Instances test = view.getTest();
+        System.out.println(String.format("runNum = %s, foldNum = %s", run, fold));
+
+        QueryManager queryManager = new SimpleQueryManager(view.getBase(), trainRows);
+        long oracleLatency = Long.getLong(ORACLE_LATENCY_PROPERTY, 0);
+        if (oracleLatency > 0) {
+            queryManager = new LatencyQueryManager(queryManager, oracleLatency);
+        }
+        AFAMethod afaMethod = makeMethod(view.getBase(), trainRows, percents, factory, queryManager, random);
+        afaMethod.setMetricsListener(metrics);
+        afaMethod.setPipelined(Boolean.getBoolean(PIPELINED_PROPERTY));
+        afaMethod.setStepBudgetMillis(Long.getLong(STEP_BUDGET_PROPERTY, 0));
+        afaMethod.setRacing(Boolean.getBoolean(RACING_PROPERTY));
+
+        PointListener listener = null;
+        if (sink != null) {
+            int allQueriesNum = getAllQueriesNum(view.getBase(), folds);
+            listener = (step, num, accuracy) ->
+                    sink.append(run, fold, step, num, getPercent(num, allQueriesNum), accuracy);
+        }
+
+        List<Pair<Integer, Double>> curve = getFoldCurve(afaMethod, test, 1, folds, fold, enableLog, checkpointFile,
+                listener);
+        if (sink != null) {
+            sink.flush();
+        }
+        if (enableLog) {
+            System.out.println(String.format("runNum = %s, foldNum = %s, time = %s", run, fold,
+                    (System.currentTimeMillis() - startTime) / 1000));
+        }
+        return curve;
+    }
+
+    /**
+     * Method of the fold made with train rows of 'base' with missing values.
+     * The train set itself is never made, and the instances with missing
+     * values aren't referenced after that, so only the method's copy of the
+     * rows (changed by acquisitions in place) is kept.
+     */
+    private static AFAMethod makeMethod(Instances base,
+                                        int[] trainRows,
+                                        double percents,
+                                        MethodFactory factory,
+                                        QueryManager queryManager,
+                                        Random random) throws Exception {
+        Instances trainMissing = DatasetFactory.makeWithMissingAttrsUniformly(base, trainRows, percents, random);
+        return factory.make(trainMissing, queryManager, random);
+    }
+
+    /**
+     * Returns pairs (number of known values, accuracy on 'testDataset') for
+     * the initial classifier and the classifier after each step. If there is
+     * a checkpoint, the method is restored from it and continues from its
+     * last step.
+     *
+     * @param afaMethod
+     * @param testDataset
+     * @param itersNum
+     * @param folds
+     * @param curFold
+     * @param enableLog
+     * @param checkpointFile checkpoint written after each step, null to disable it
+     * @param listener receives new points (not the ones restored from the checkpoint), may be null
+     * @return
+     * @throws Exception
+     */
+    private static List<Pair<Integer, Double>> getFoldCurve(AFAMethod afaMethod,
+                                                            Instances testDataset,
+                                                            int itersNum,
+                                                            int folds,
+                                                            int curFold,
+                                                            boolean enableLog,
+                                                            File checkpointFile,
+                                                            PointListener listener) throws Exception {
+        List<Pair<Integer, Double>> curve = checkpointFile == null ? null : Checkpoint.read(checkpointFile, afaMethod);
+        J48 lastCls = new J48();
+        if (curve == null) {
+            // Zero step
+            curve = new ArrayList<>();
+            int num = afaMethod.getAllQueriesNum() - afaMethod.getRealPossibleQueries();
+            J48 initialCls = afaMethod.makeClassifier();
+            curve.add(new Pair<>(num, DatasetFactory.calculateAccuracy(initialCls, testDataset)));
+            if (listener != null) {
+                listener.pointAdded(0, num, curve.get(0).second);
+            }
+            if (checkpointFile != null) {
+                Checkpoint.write(checkpointFile, curve, afaMethod);
+            }
+        } else if (curve.size() > 1) {
+            lastCls = afaMethod.makeClassifier(); // classifier of the last step
+        }
+
+        int num = curve.get(curve.size() - 1).first;
+        int possibleQueriesNum = afaMethod.getAllQueriesNum() - num;
+        StringBuilder log = new StringBuilder("possibleQueriesNum = " + possibleQueriesNum);
+
+        List<Pair<List<Pair<Integer, Integer>>, J48>> res = afaMethod.perform(itersNum);
+        while (res.size() > 0) {
+            num = num + res.get(0).first.size();
+            curve.add(new Pair<>(num, DatasetFactory.calculateAccuracy(res.get(0).second, testDataset)));
+            if (listener != null) {
+                listener.pointAdded(curve.size() - 1, num, curve.get(curve.size() - 1).second);
+            }
+            if (checkpointFile != null) {
+                Checkpoint.write(checkpointFile, curve, afaMethod);
+            }
+
+            lastCls = res.get(0).second; // todo
+
+            possibleQueriesNum -= res.get(0).first.size();
+            log.append(" --> ").append(possibleQueriesNum);
+            res = afaMethod.perform(itersNum);
+        }
+
+        if (enableLog) {
+            System.out.println(log.append(" --end--> 0"));
+            if (curFold == folds - 1) { // todo
+                System.out.println("Super test of last classifier:");
+                System.out.println("Acccuracy = " + DatasetFactory.calculateAccuracy(lastCls, testDataset));
+                System.out.println("_____");
+            }
+        }
+
+        return curve;
+    }
+
+    /**
+     * Add accuracies of the fold to accuracies of previous folds of the run
+     * (by step), number of known values of a step is taken from the first fold.
+     */
+    private static void addFoldCurve(List<Pair<Integer, List<Double>>> numToAcc, List<Pair<Integer, Double>> curve) {
+        for (int cnt = 0; cnt < curve.size(); ++cnt) {
+            if (numToAcc.size() <= cnt) {
+                List<Double> accs = new ArrayList<>();
+                accs.add(curve.get(cnt).second);
+                numToAcc.add(new Pair<>(curve.get(cnt).first, accs));
+            } else {
+                numToAcc.get(cnt).second.add(curve.get(cnt).second);
+            }
+        }
+    }
+
+    /**
+     * Add average accuracies of the run to 'numToAccByRuns' by percent of
+     * known values.
+     *
+     * @param numToAcc
+     * @param numToAccByRuns
+     * @param allQueriesNum
+     */
+    private static void collectInfoFromRun(List<Pair<Integer, List<Double>>> numToAcc,
+                                           Map<Integer, List<Double>> numToAccByRuns,
+                                           int allQueriesNum) {
+        for (Pair<Integer, List<Double>> pair : numToAcc) {
+            double avgAcc = pair.second.stream().mapToDouble(val -> val).average().getAsDouble();
+            int key = getPercent(pair.first, allQueriesNum);
+            if (numToAccByRuns.containsKey(key)) {
+                numToAccByRuns.get(key).add(avgAcc);
+            } else {
+                List<Double> accuracies = new LinkedList<>();
+                accuracies.add(avgAcc);
+                numToAccByRuns.put(key, accuracies);
+            }
+        }
+    }
+
+    /**
+     * Percent of known values (key of learning curve).
+     */
+    public static int getPercent(int num, int allQueriesNum) {
+        return (int) (Math.round(100.0 * ((double) num / (double) allQueriesNum)));
+    }
+}
@@ -0,0 +1,30 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+/**
+ * Told by AFAMethod how long phases of its steps take.
+ */
+public interface MetricsListener {
+    enum Phase {
+        CLASSIFIER_BUILD, // building of the classifier on current instances
+        SCORING,          // rewards or expected utilities of possible queries
+        SELECTION,        // choosing of candidates and of best queries among them
+        ACQUISITION,      // getting values from QueryManager
+        DISCRETIZATION    // discretizing of current instances (SEU)
+    }
+
+    /**
+     * @param phase
+     * @param nanos duration of the phase
+     */
+    void phaseFinished(Phase phase, long nanos);
+
+    /**
+     * @param candidatesNum number of queries which were considered at the step
+     * @param acquiredNum number of acquired queries
+     * @param nanos duration of the step
+     * @param allocatedBytes bytes allocated during the step by the thread of
+     *                       the method and by its tasks in TaskScheduler,
+     *                       -1 if unknown
+     */
+    void stepFinished(int candidatesNum, int acquiredNum, long nanos, long allocatedBytes);
+}
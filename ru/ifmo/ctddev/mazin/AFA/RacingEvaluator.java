@@ -0,0 +1,268 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.core.Instances;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Successive-halving selection of the best queries by expected utility
+ * (SEU): sum over values v of P(v) * (A(v) - oldAcc), where A(v) is the
+ * accuracy on the instances of the tree built with the query set to v.
+ *
+ * Accuracies are first estimated on a small stratified subsample of the
+ * instances, the subsample is doubled every round. After every round a
+ * candidate is dropped if its estimate plus the Hoeffding radius is below
+ * the estimate of the b-th best candidate minus the radius. Trees of
+ * survivors are kept between rounds, so only evaluation grows, trees of
+ * dropped candidates are released at once. Survivors are evaluated on all
+ * instances and get exact scores, the same as exhaustive scoring gives
+ * them, their trees are released as soon as they are evaluated.
+ */
+public class RacingEvaluator {
+    public static final double DEFAULT_DELTA = 0.05;
+    public static final int MIN_SAMPLE_SIZE = 32;
+
+    private final WhatIfJ48 whatIf;
+    private final int[] order; // rows of the instances, every prefix is stratified by class
+    private final double delta; // probability of dropping a candidate which is among the best
+    private final TaskScheduler scheduler;
+
+    /**
+     * Probabilities of values of a query.
+     */
+    public interface ValueProbs {
+        /**
+         * @return probability of every value of the attribute, null if the
+         *         value is known to be the 'knownValue'
+         */
+        double[] getProbs(int instIndex, int attrIndex) throws Exception;
+
+        /**
+         * @return the only possible value if getProbs(..) returned null
+         */
+        int getKnownValue(int attrIndex) throws Exception;
+    }
+
+    /**
+     * @param whatIf tree of the (discretized) instances
+     * @param instances the same instances as of 'whatIf'
+     * @param delta
+     * @param seed seed of the subsample order
+     * @param scheduler
+     */
+    public RacingEvaluator(WhatIfJ48 whatIf, Instances instances, double delta, long seed, TaskScheduler scheduler) {
+        if (delta <= 0 || delta >= 1) {
+            throw new IllegalArgumentException("'delta' should be in (0, 1)");
+        }
+
+        this.whatIf = whatIf;
+        this.order = getStratifiedOrder(instances, new Random(seed));
+        this.delta = delta;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Rows of 'instances' shuffled within classes, k-th row of a class with
+     * 'size' rows has key (k + 0.5) / size and rows are sorted by key.
+     */
+    static int[] getStratifiedOrder(Instances instances, Random random) {
+        int n = instances.numInstances();
+        Map<Integer, List<Integer>> byClass = new TreeMap<>();
+        for (int i = 0; i < n; ++i) {
+            byClass.computeIfAbsent((int) instances.instance(i).classValue(), key -> new ArrayList<>()).add(i);
+        }
+
+        double[] keys = new double[n];
+        for (List<Integer> rows : byClass.values()) {
+            Collections.shuffle(rows, random);
+            for (int k = 0; k < rows.size(); ++k) {
+                keys[rows.get(k)] = (k + 0.5) / rows.size();
+            }
+        }
+
+        return byClass.values().stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparingDouble(row -> keys[row]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Keep the best queries of 'cells' in 'best'.
+     *
+     * @param cells queries encoded as (instIndex * m + attrIndex)
+     * @param m number of attributes
+     * @param probs
+     * @param oldAcc accuracy subtracted from accuracies of the changed instances
+     * @param best empty top with capacity equal to the number of queries to select
+     * @return report of the step, getScoredNum() is the number of candidates evaluated on all instances
+     * @throws Exception
+     */
+    public TaskScheduler.StepReport select(int[] cells,
+                                           int m,
+                                           ValueProbs probs,
+                                           double oldAcc,
+                                           BoundedTopK best) throws Exception {
+        long startTime = System.nanoTime();
+        Map<Integer, Candidate> candidates = new HashMap<>(cells.length * 2);
+        for (int cell : cells) {
+            candidates.put(cell, new Candidate());
+        }
+
+        int n = order.length;
+        int capacity = best.capacity();
+        int[] survivors = cells;
+        AtomicLong chunksNum = new AtomicLong();
+        AtomicLong busyNanos = new AtomicLong();
+        int from = 0;
+        int to = Math.min(n, Math.max(MIN_SAMPLE_SIZE, n / 16));
+        while (true) {
+            int sampleFrom = from;
+            int sampleTo = to;
+            TaskScheduler.StepReport report = scheduler.runByAttribute(survivors, m, (instIndex, attrIndex) -> {
+                Candidate candidate = candidates.get(instIndex * m + attrIndex);
+                if (candidate.correct == null) {
+                    candidate.init(instIndex, attrIndex, probs);
+                }
+                candidate.evaluate(sampleFrom, sampleTo);
+                if (sampleTo == n) {
+                    candidate.release(); // only the counts are needed for the score
+                }
+            });
+            chunksNum.addAndGet(report.getChunksNum());
+            busyNanos.addAndGet(report.getBusyNanos());
+
+            if (to == n) {
+                break;
+            }
+            if (capacity > 0 && survivors.length > capacity) {
+                survivors = dropLosers(survivors, candidates, capacity, to);
+            }
+            from = to;
+            to = Math.min(n, 2 * to);
+        }
+
+        for (int cell : survivors) {
+            best.offer(candidates.get(cell).getScore(oldAcc, n), cell);
+        }
+
+        return new TaskScheduler.StepReport(cells.length, survivors.length, chunksNum.get(),
+                System.nanoTime() - startTime, busyNanos.get(), scheduler.getParallelism());
+    }
+
+    /**
+     * Candidates which may still be among 'capacity' best after evaluation
+     * on 'sampleSize' instances.
+     */
+    private int[] dropLosers(int[] survivors, Map<Integer, Candidate> candidates, int capacity, int sampleSize) {
+        double[] estimates = new double[survivors.length];
+        for (int k = 0; k < survivors.length; ++k) {
+            estimates[k] = candidates.get(survivors[k]).getEstimate(sampleSize);
+        }
+        double[] sorted = estimates.clone();
+        Arrays.sort(sorted);
+        double kthBest = sorted[sorted.length - capacity];
+
+        // union bound over all candidates still in the race
+        double radius = Math.sqrt(Math.log(2.0 * survivors.length / delta) / (2.0 * sampleSize));
+        int[] res = new int[survivors.length];
+        int size = 0;
+        for (int k = 0; k < survivors.length; ++k) {
+            if (estimates[k] + 2 * radius >= kthBest) {
+                res[size++] = survivors[k];
+            } else {
+                candidates.remove(survivors[k]).release(); // trees aren't needed any more
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    /**
+     * Trees of the changed instances for every possible value of a query
+     * and their numbers of correct answers on the evaluated rows.
+     */
+    private class Candidate {
+        double[] probs; // null if the value is known to be 'knownValue'
+        int knownValue;
+        CompiledJ48[] trees; // by value, null if the value has zero probability, null after release()
+        InstancesOverlay[] changed; // by value, the same as 'trees'
+        int[] correct;
+
+        void init(int instIndex, int attrIndex, ValueProbs valueProbs) throws Exception {
+            probs = valueProbs.getProbs(instIndex, attrIndex);
+            int valuesNum = probs == null ? 1 : probs.length;
+            trees = new CompiledJ48[valuesNum];
+            changed = new InstancesOverlay[valuesNum];
+            correct = new int[valuesNum];
+            if (probs == null) {
+                knownValue = valueProbs.getKnownValue(attrIndex);
+                changed[0] = whatIf.withValue(instIndex, attrIndex, knownValue);
+                trees[0] = whatIf.build(changed[0], instIndex);
+                return;
+            }
+            for (int v = 0; v < valuesNum; ++v) {
+                if (probs[v] > 0) {
+                    changed[v] = whatIf.withValue(instIndex, attrIndex, v);
+                    trees[v] = whatIf.build(changed[v], instIndex);
+                }
+            }
+        }
+
+        void evaluate(int from, int to) {
+            for (int v = 0; v < trees.length; ++v) {
+                if (trees[v] != null) {
+                    correct[v] += trees[v].countCorrect(changed[v], order, from, to);
+                }
+            }
+        }
+
+        /**
+         * Drop trees and changed instances, estimates and the score are
+         * still available.
+         */
+        void release() {
+            trees = null;
+            changed = null;
+        }
+
+        /**
+         * Whether there is a tree of value 'v'.
+         */
+        boolean isEvaluated(int v) {
+            return probs == null || probs[v] > 0;
+        }
+
+        /**
+         * Estimate of sum over values of P(v) * A(v), A(v) is in [0, 1].
+         */
+        double getEstimate(int sampleSize) {
+            if (probs == null) {
+                return (double) correct[0] / sampleSize;
+            }
+            double res = 0.0;
+            for (int v = 0; v < correct.length; ++v) {
+                if (isEvaluated(v)) {
+                    res += probs[v] * correct[v] / sampleSize;
+                }
+            }
+            return res;
+        }
+
+        /**
+         * Score after evaluation on all 'n' instances, computed the same way
+         * as by SEU methods.
+         */
+        double getScore(double oldAcc, int n) {
+            if (probs == null) {
+                return (double) correct[0] / ((double) n) - oldAcc;
+            }
+            double score = 0.0;
+            for (int v = 0; v < probs.length; ++v) {
+                double acc = isEvaluated(v) ? (double) correct[v] / ((double) n) : 0.0;
+                score += probs[v] * (acc - oldAcc);
+            }
+            return score;
+        }
+    }
+}
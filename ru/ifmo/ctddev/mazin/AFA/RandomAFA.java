@@ -2,17 +2,20 @@ package ru.ifmo.ctddev.mazin.AFA;
 
 import weka.attributeSelection.InfoGainAttributeEval;
 import weka.classifiers.trees.J48;
-import weka.core.Instance;
 import weka.core.Instances;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class RandomAFA extends AFAMethod {
     public RandomAFA(Instances instances, QueryManager queryManager, int b) {
-        this.instances = new Instances(instances);
+        this(instances, queryManager, b, new Random());
+    }
+
+    public RandomAFA(Instances instances, QueryManager queryManager, int b, Random random) {
+        setInstances(instances);
         this.queryManager = queryManager;
         this.b = b;
+        this.random = random;
 
         init();
     }
@@ -26,18 +29,7 @@ public class RandomAFA extends AFAMethod {
         n = instances.numInstances();
         m = instances.numAttributes() - 1;
 
-        possibleQueries = new LinkedHashMap<>(n);
-        for (int i = 0; i < n; ++i) {
-            Set<Integer> possibleAttrsToQuery = new HashSet<>();
-            for (int j = 0; j < m; ++j) {
-                if (instances.instance(i).isMissing(j)) {
-                    possibleAttrsToQuery.add(j);
-                }
-            }
-            if (!possibleAttrsToQuery.isEmpty()) {
-                possibleQueries.put(i, possibleAttrsToQuery);
-            }
-        }
+        state = new AcquisitionState(instances, m);
     }
 
     private String areInstancesCorrect() {
@@ -64,6 +56,10 @@ public class RandomAFA extends AFAMethod {
     /**
      * Perform AFABandit method for active feature-value acquiring.
      *
+     * Queries don't depend on values, so if the method is pipelined queries
+     * of the next step (of the next call for the last step) are selected
+     * while values of current one are acquired and the result is the same.
+     *
      * @param k number of performStep running
      * @return list of pairs (acquired queries, build classifier) for each step
      * @throws Exception
@@ -71,65 +67,73 @@ public class RandomAFA extends AFAMethod {
     public List<Pair<List<Pair<Integer, Integer>>, J48>> perform(int k) throws Exception {
         J48 classifier;
         List<Pair<List<Pair<Integer, Integer>>, J48>> res = new LinkedList<>();
+        List<Pair<Integer, Integer>> bestQueries = pipelinedQueries; // queries of current step if already selected
+        int candidatesNum = pipelinedCandidatesNum;
+        pipelinedQueries = null;
         for (int i = 0; i < k; ++i) {
-            if (possibleQueries.size() == 0) {
+            if (bestQueries == null && state.isEmpty()) {
                 break; // nothing to query
             }
+            stepStarted();
+            if (bestQueries == null) {
+                candidatesNum = state.getPossibleQueriesNum();
+                bestQueries = selectQueries();
+            }
 
-            if (possibleQueries.size() < b) {
-                b = possibleQueries.size();
+            List<Pair<Integer, Integer>> nextQueries = null;
+            int nextCandidatesNum = 0;
+            if (pipelined && !state.isEmpty()) {
+                nextCandidatesNum = state.getPossibleQueriesNum();
+                nextQueries = selectQueries();
             }
-            List<Pair<Integer, Integer>> bestQueries = performStep(b);
+
+            awaitValues();
+            long start = phaseStarted();
             classifier = makeClassifier();
+            phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
             res.add(new Pair<>(bestQueries, classifier));
+            stepFinished(candidatesNum, bestQueries.size());
 
-            updatePossibleQueries();
+            bestQueries = nextQueries;
+            candidatesNum = nextCandidatesNum;
         }
+        pipelinedQueries = bestQueries; // requested for the first step of the next call
+        pipelinedCandidatesNum = candidatesNum;
 
         return res;
     }
 
-    private List<Pair<Integer, Integer>> performStep(int b) {
-        // todo write your own normal pair
-        List<Pair<Integer, Integer>> queries = new ArrayList<>();
-
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            int i = entry.getKey();
-            for (Integer j : entry.getValue()) {
-                queries.add(new Pair<>(i, j));
-            }
+    private List<Pair<Integer, Integer>> selectQueries() {
+        if (state.getOpenInstancesNum() < b) {
+            b = state.getOpenInstancesNum();
         }
+        return performStep(b);
+    }
 
-        // Choose best 'b' queries to acquire:
-        Collections.shuffle(queries);
-
-        List<Pair<Integer, Integer>> bestQueries = queries.subList(0, b);
+    private List<Pair<Integer, Integer>> performStep(int b) {
+        long start = phaseStarted();
+        int[] queries = state.toCellArray();
+
+        // Choose random 'b' queries to acquire (first 'b' steps of Fisher-Yates shuffle):
+        List<Pair<Integer, Integer>> bestQueries = new ArrayList<>(b);
+        for (int k = 0; k < b; ++k) {
+            int r = k + random.nextInt(queries.length - k);
+            int cell = queries[r];
+            queries[r] = queries[k];
+            queries[k] = cell;
+
+            bestQueries.add(new Pair<>(cell / m, cell % m));
+        }
 
         for (Pair<Integer, Integer> query : bestQueries) {
-            acquireQuery(query.first, query.second);
-
-            possibleQueries.get(query.first).remove(query.second);
+            state.acquire(query.first, query.second);
         }
+        requestValues(bestQueries);
+        phaseFinished(MetricsListener.Phase.SELECTION, start);
 
         return bestQueries;
     }
 
-    private void acquireQuery(int instIndex, int attrIndex) {
-        Instance inst = instances.instance(instIndex);
-        inst.setValue(attrIndex, queryManager.getValue(instIndex, attrIndex));
-    }
-
-    /**
-     * Remove complete instances from 'possibleQueries'
-     */
-    private void updatePossibleQueries() {
-        Set<Integer> completeInstances = possibleQueries.entrySet().stream()
-                .filter(entry -> entry.getValue().isEmpty())
-                .map(Map.Entry::getKey).collect(Collectors.toSet());
-
-        completeInstances.forEach(possibleQueries::remove);
-    }
-
     public J48 makeClassifier() throws Exception {
         J48 classifier = new J48();
         classifier.setUseLaplace(true);
@@ -147,12 +151,7 @@ public class RandomAFA extends AFAMethod {
     }
 
     public int getRealPossibleQueries() {
-        int res = 0;
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            res += entry.getValue().size();
-        }
-
-        return res;
+        return state.getPossibleQueriesNum();
     }
 
     public int getAllQueriesNum() {
@@ -0,0 +1,92 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming writer of learning curve points.
+ *
+ * Every point (run, fold, step, number of known values, percent of known
+ * values, accuracy) is appended to the file as soon as it's computed. Output
+ * is buffered and flushed at most once per FLUSH_MILLIS and at the end of
+ * every fold, so the file can be tailed (see readPoints(..)) while the
+ * experiment is running and a crash loses at most the last second of points.
+ * Points of several folds may be appended at once from different threads.
+ */
+public class ResultSink implements Closeable {
+    public static final String HEADER = "run,fold,step,known,percent,accuracy";
+
+    private static final long FLUSH_MILLIS = 1000;
+
+    private final BufferedWriter writer;
+    private long lastFlushTime;
+
+    /**
+     * Open sink appending to 'file', header is written if the file is new.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public ResultSink(File file) throws IOException {
+        boolean isNew = file.length() == 0;
+        writer = new BufferedWriter(new FileWriter(file, true));
+        if (isNew) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.flush();
+        }
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    public synchronized void append(int run, int fold, int step, int known, int percent, double accuracy)
+            throws IOException {
+        writer.write(run + "," + fold + "," + step + "," + known + "," + percent + "," + accuracy);
+        writer.newLine();
+
+        long now = System.currentTimeMillis();
+        if (now - lastFlushTime >= FLUSH_MILLIS) {
+            writer.flush();
+            lastFlushTime = now;
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Read points written so far: percent of known values -> accuracies
+     * of all points with this percent in order of appending. The last line
+     * is skipped if it isn't written completely yet.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Map<Integer, List<Double>> readPoints(File file) throws IOException {
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+
+        Map<Integer, List<Double>> res = new LinkedHashMap<>();
+        for (int k = 1; k < lines.length; ++k) { // lines[0] is the header
+            String[] parts = lines[k].trim().split(",");
+            int percent = Integer.parseInt(parts[4]);
+            if (!res.containsKey(percent)) {
+                res.put(percent, new LinkedList<>());
+            }
+            res.get(percent).add(Double.parseDouble(parts[5]));
+        }
+        return res;
+    }
+}
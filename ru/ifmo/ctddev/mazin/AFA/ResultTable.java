@@ -0,0 +1,261 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Learning curve result (percent of known values -> accuracies of runs) in
+ * a binary columnar format.
+ *
+ * Layout (big-endian):
+ * magic, version, dataset name, method name, number of parameters and
+ * (name, value) of each, number of keys 'k', percent keys int[k], offsets
+ * int[k + 1] and all accuracies double[offsets[k]], accuracies of key 'i'
+ * are values[offsets[i] .. offsets[i + 1]). Strings are written as length
+ * and UTF-8 bytes. Number of accuracies may differ from key to key (a run
+ * may skip or repeat a percent), so the matrix is stored by columns with
+ * offsets.
+ *
+ * read(..) maps the file into memory and reads accuracies directly from the
+ * mapping, nothing is parsed. CSV in the layout of
+ * DatasetTest.writeMethodResult(..) can be imported and exported.
+ */
+public class ResultTable {
+    public static final String EXT = ".curves";
+
+    private static final int MAGIC = 0x41464152; // "AFAR"
+    private static final int VERSION = 1;
+
+    private final String datasetName;
+    private final String methodName;
+    private final Map<String, String> params;
+    private final int[] percents; // keys of the curve
+    private final int[] offsets; // accuracies of key 'i' are values[offsets[i] .. offsets[i + 1])
+    private final DoubleBuffer values; // on heap or mapped from file
+
+    /**
+     * @param datasetName
+     * @param methodName
+     * @param params parameters of the method and of the experiment
+     * @param curves percent of known values -> accuracies
+     */
+    public ResultTable(String datasetName, String methodName, Map<String, String> params, Map<Integer, List<Double>> curves) {
+        this.datasetName = datasetName;
+        this.methodName = methodName;
+        this.params = new LinkedHashMap<>(params);
+
+        percents = new int[curves.size()];
+        offsets = new int[curves.size() + 1];
+        int k = 0;
+        for (Map.Entry<Integer, List<Double>> entry : curves.entrySet()) {
+            percents[k] = entry.getKey();
+            offsets[k + 1] = offsets[k] + entry.getValue().size();
+            ++k;
+        }
+
+        double[] array = new double[offsets[k]];
+        int pos = 0;
+        for (List<Double> accuracies : curves.values()) {
+            for (double accuracy : accuracies) {
+                array[pos++] = accuracy;
+            }
+        }
+        values = DoubleBuffer.wrap(array);
+    }
+
+    private ResultTable(String datasetName,
+                        String methodName,
+                        Map<String, String> params,
+                        int[] percents,
+                        int[] offsets,
+                        DoubleBuffer values) {
+        this.datasetName = datasetName;
+        this.methodName = methodName;
+        this.params = params;
+        this.percents = percents;
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    public String getDatasetName() {
+        return datasetName;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public Map<String, String> getParams() {
+        return Collections.unmodifiableMap(params);
+    }
+
+    /**
+     * Number of keys.
+     */
+    public int size() {
+        return percents.length;
+    }
+
+    public int getPercent(int keyIndex) {
+        return percents[keyIndex];
+    }
+
+    public double[] getValues(int keyIndex) {
+        double[] res = new double[offsets[keyIndex + 1] - offsets[keyIndex]];
+        DoubleBuffer view = values.duplicate(); // position of 'values' is shared by readers
+        view.position(offsets[keyIndex]);
+        view.get(res);
+        return res;
+    }
+
+    /**
+     * Returns map: percent of known values -> accuracies, as returned by
+     * DatasetFactory.*GetLerningCurve(..).
+     */
+    public Map<Integer, List<Double>> toMap() {
+        Map<Integer, List<Double>> res = new LinkedHashMap<>();
+        for (int i = 0; i < percents.length; ++i) {
+            List<Double> accuracies = new LinkedList<>();
+            for (double accuracy : getValues(i)) {
+                accuracies.add(accuracy);
+            }
+            res.put(percents[i], accuracies);
+        }
+        return res;
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, datasetName);
+            writeString(out, methodName);
+            out.writeInt(params.size());
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+
+            out.writeInt(percents.length);
+            for (int percent : percents) {
+                out.writeInt(percent);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (int k = 0; k < offsets[percents.length]; ++k) {
+                out.writeDouble(values.get(k));
+            }
+        }
+    }
+
+    /**
+     * Read table written by write(..), accuracies stay in the mapped file.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file isn't a table or is of another version
+     */
+    public static ResultTable read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a result table: " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Result table %s has version %s, expected %s", file, version, VERSION));
+        }
+
+        String datasetName = readString(buffer);
+        String methodName = readString(buffer);
+        int paramsNum = buffer.getInt();
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int k = 0; k < paramsNum; ++k) {
+            String name = readString(buffer);
+            params.put(name, readString(buffer));
+        }
+
+        int size = buffer.getInt();
+        int[] percents = new int[size];
+        buffer.asIntBuffer().get(percents);
+        buffer.position(buffer.position() + 4 * size);
+        int[] offsets = new int[size + 1];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + 4 * (size + 1));
+
+        DoubleBuffer values = buffer.slice().asDoubleBuffer();
+        if (values.remaining() < offsets[size]) {
+            throw new IOException("Result table is truncated: " + file);
+        }
+        return new ResultTable(datasetName, methodName, params, percents, offsets, values);
+    }
+
+    /**
+     * Read CSV written by DatasetTest.writeMethodResult(..): lines "percent,accuracy,accuracy,...".
+     *
+     * @param file
+     * @param datasetName
+     * @param methodName
+     * @param params
+     * @return
+     * @throws IOException
+     */
+    public static ResultTable importCsv(File file,
+                                        String datasetName,
+                                        String methodName,
+                                        Map<String, String> params) throws IOException {
+        Map<Integer, List<Double>> curves = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                List<Double> accuracies = new ArrayList<>(parts.length - 1);
+                for (int k = 1; k < parts.length; ++k) {
+                    accuracies.add(Double.parseDouble(parts[k]));
+                }
+                curves.put(Integer.parseInt(parts[0]), accuracies);
+            }
+        }
+        return new ResultTable(datasetName, methodName, params, curves);
+    }
+
+    /**
+     * Write CSV in the layout of DatasetTest.writeMethodResult(..).
+     */
+    public void exportCsv(File file) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < percents.length; ++i) {
+                sb.setLength(0);
+                sb.append(percents[i]);
+                for (int k = offsets[i]; k < offsets[i + 1]; ++k) {
+                    sb.append(',').append(values.get(k));
+                }
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -4,13 +4,9 @@ import weka.classifiers.Classifier;
 import weka.classifiers.trees.J48;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.filters.Filter;
 import weka.filters.supervised.attribute.Discretize;
 
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -26,10 +22,12 @@ public class SEUErrorSampling extends AFAMethod {
                          // at each step we choose 'esParam' instances, and among them
                          // choose 'b' missing queries to acquire
 
-    private Pair<J48, Integer>[] attrsClassifiers; // for getProb(..) computing
-    private Instances[] attrsInstances; // for getProb(..) computing
+    int[] candidateInstances; // instances whose possible queries are scored at current step
 
-    Discretize discretizer;
+    AttrClassifierCache attrClassifiers; // classifiers of attributes for getProb(..) computing
+    private WhatIfJ48 whatIfClassifier; // tree of discInstances for getUtility(..) computing
+
+    DiscretizedMirror discMirror; // discInstances updated with acquired values
     Set<Integer> numericAttrsIndexes;
 
     Instances discInstances;
@@ -40,14 +38,28 @@ public class SEUErrorSampling extends AFAMethod {
                               int b,
                               Discretize discretizer,
                               Set<Integer> numericAttrsIndexes) throws Exception {
-        this.instances = new Instances(instances);
+        this(instances, queryManager, esParam, b, discretizer, numericAttrsIndexes, new Random());
+    }
+
+    public SEUErrorSampling(Instances instances,
+                              QueryManager queryManager,
+                              int esParam,
+                              int b,
+                              Discretize discretizer,
+                              Set<Integer> numericAttrsIndexes,
+                              Random random) throws Exception {
+        this.random = random;
+        setInstances(instances);
         this.queryManager = queryManager;
         this.esParam = esParam;
         this.b = b;
-        this.discretizer = discretizer; // todo;
         this.numericAttrsIndexes = numericAttrsIndexes; // todo
 
         init();
+
+        discMirror = new DiscretizedMirror(this.instances, discretizer);
+        discInstances = discMirror.getInstances();
+        attrClassifiers = new AttrClassifierCache(discInstances, m, Math.max(1, m));
     }
 
     private void init() throws Exception {
@@ -60,29 +72,29 @@ public class SEUErrorSampling extends AFAMethod {
         n = instances.numInstances();
         m = instances.numAttributes() - 1;
 
-        for (int i = 0; i < n; ++i) {
-            for (int j = 0; j < m; ++j) {
-                if (instances.instance(i).isMissing(j)) {
-                    ++realPossibleQueries;
-                }
-            }
-        }
-
-//        todo discInstances = Filter.useFilter(instances, discretizer);
+        state = new AcquisitionState(instances, m);
+        realPossibleQueries = state.getPossibleQueriesNum();
     }
 
     public List<Pair<List<Pair<Integer, Integer>>, J48>> perform(int k) throws Exception {
+        long start = phaseStarted();
         J48 classifier = makeClassifier();
+        phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
         List<Pair<List<Pair<Integer, Integer>>, J48>> res = new LinkedList<>();
         while (k-- > 0) {
-            possibleQueries = getPossibleQueries(classifier);
+            stepStarted();
+            start = phaseStarted();
+            candidateInstances = getCandidateInstances(classifier);
+            phaseFinished(MetricsListener.Phase.SELECTION, start);
 
-            if (possibleQueries.size() == 0) {
+            if (candidateInstances.length == 0) {
                 break; // nothing to query
             }
 
-            // set discInstances
-            discInstances = Filter.useFilter(instances, discretizer);
+            // set discInstances, values acquired so far are already in them
+            start = phaseStarted();
+            discInstances = discMirror.refresh();
+            phaseFinished(MetricsListener.Phase.DISCRETIZATION, start);
 
             int batchSize = b;
             int possibleQueriesNum = getPossibleQueriesNum();
@@ -91,8 +103,11 @@ public class SEUErrorSampling extends AFAMethod {
             }
 
             List<Pair<Integer, Integer>> bestQueries = concurrentPerformStep(batchSize, classifier);
+            start = phaseStarted();
             classifier = makeClassifier();
+            phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
             res.add(new Pair<>(bestQueries, classifier));
+            stepFinished(lastStepReport.getScoredNum(), bestQueries.size());
         }
 
         return res;
@@ -131,36 +146,47 @@ public class SEUErrorSampling extends AFAMethod {
      * @return
      * @throws Exception
      */
-    private List<Pair<Integer, Integer>> concurrentPerformStep(int batchSize, J48 cls) throws Exception {
-        attrsClassifiers = new Pair[m];
-        attrsInstances = new Instances[m];
-        for (int j = 0; j < m; ++j) {
-            initClassifierForAttr(j);
+    List<Pair<Integer, Integer>> concurrentPerformStep(int batchSize, J48 cls) throws Exception {
+        long stepStart = System.nanoTime();
+        long start = phaseStarted();
+        int[] candidateCells = getCandidateCells();
+        attrClassifiers.setInstances(discInstances);
+        if (racing || stepBudgetMillis == 0) {
+            attrClassifiers.prepare(candidateCells, scheduler); // within the budget they are built when needed
         }
+        whatIfClassifier = new WhatIfJ48(discInstances);
 
         double oldAcc = DatasetFactory.calculateAccuracy(cls, instances);
 
-        List<Pair<Double, Pair<Integer, Integer>>> scores = Collections.synchronizedList(new ArrayList<>());
-        ExecutorService execSvc = Executors.newCachedThreadPool();
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            int i = entry.getKey();
-            for (Integer j : entry.getValue()) {
-                CodeRunner runner = new CodeRunner(new Instances(discInstances), i, j, scores, oldAcc);
-                execSvc.execute(runner);
-            }
+        // Choose best 'b' queries to acquire:
+        BoundedTopK topQueries = new BoundedTopK(batchSize);
+        CodeRunner runner = new CodeRunner(discInstances, oldAcc);
+        if (racing) {
+            RacingEvaluator evaluator = new RacingEvaluator(whatIfClassifier, discInstances,
+                    RacingEvaluator.DEFAULT_DELTA, state.getTotalNumQueries(), scheduler);
+            lastStepReport = evaluator.select(candidateCells, m, runner, oldAcc, topQueries);
+        } else if (stepBudgetMillis > 0) {
+            // candidate instances are in order of priority: misclassified, then uncertain ones
+            long budgetNanos = Math.max(0, stepBudgetMillis * 1000000 - (System.nanoTime() - stepStart));
+            lastStepReport = scheduler.selectByPriority(candidateCells, m, topQueries, runner, budgetNanos);
+        } else {
+            lastStepReport = scheduler.selectByAttribute(candidateCells, m, topQueries, runner);
         }
-        execSvc.shutdown();
-        execSvc.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES); // todo
+        phaseFinished(MetricsListener.Phase.SCORING, start);
 
-        // Choose best 'b' queries to acquire:
-        Collections.sort(scores, (o1, o2) -> o1.first < o2.first ? 1 : o1.first.equals(o2.first) ? 0 : -1);
-        ArrayList<Pair<Integer, Integer>> bestQueries = scores.subList(0, batchSize).stream()
-                .map(pair -> pair.second)
-                .collect(Collectors.toCollection(ArrayList::new));
+        start = phaseStarted();
+        List<Pair<Integer, Integer>> bestQueries = new ArrayList<>(batchSize);
+        for (int cell : topQueries.pollSortedIds()) {
+            bestQueries.add(new Pair<>(cell / m, cell % m));
+        }
 
         for (Pair<Integer, Integer> query : bestQueries) {
-            acquireQuery(query.first, query.second);
+            state.acquire(query.first, query.second);
         }
+        requestValues(bestQueries);
+        phaseFinished(MetricsListener.Phase.SELECTION, start);
+
+        awaitValues(); // candidate instances of the next step depend on the values
 
         // update discInstances
 //        discInstances = Filter.useFilter(instances, discretizer);
@@ -168,32 +194,31 @@ public class SEUErrorSampling extends AFAMethod {
         return bestQueries;
     }
 
-    // ok
-    public Map<Integer, Set<Integer>> getPossibleQueries(J48 classifier) throws Exception {
+    /**
+     * Returns interesting instances which still have possible queries.
+     *
+     * @param classifier
+     * @return
+     * @throws Exception
+     */
+    public int[] getCandidateInstances(J48 classifier) throws Exception {
         List<Integer> matchedInstances = getInterestingInstances(classifier);
 
-        Map<Integer, Set<Integer>> possibleQueries = new HashMap<>();
-        for (int instIndex : matchedInstances) {
-            Set<Integer> possibleAttrsToQuery = new HashSet<>();
-            for (int attrIndex = 0; attrIndex < m; ++attrIndex) {
-                if (Instance.isMissingValue(instances.instance(instIndex).value(attrIndex))) {
-                    possibleAttrsToQuery.add(attrIndex);
-                }
-            }
-            if (!possibleAttrsToQuery.isEmpty()) {
-                possibleQueries.put(instIndex, possibleAttrsToQuery);
-            }
-        }
-
-        return possibleQueries;
+        return matchedInstances.stream()
+                .mapToInt(Integer::intValue)
+                .filter(instIndex -> state.getInstPossibleQueriesNum(instIndex) > 0)
+                .toArray();
     }
 
     // ok
-    private List<Integer> getInterestingInstances(J48 cls) throws Exception {
+    private List<Integer> getInterestingInstances(J48 classifier) throws Exception {
+        CompiledJ48 cls = CompiledJ48.compile(classifier);
+        double[] predictions = cls.predict(instances);
+
         ArrayList<Integer> misclassified = new ArrayList<>(n);
         for (int i = 0; i < n; ++i) {
             Instance inst = instances.instance(i);
-            if (inst.hasMissingValue() && DatasetFactory.isInstMisclassified(inst, cls)) { // todo
+            if (inst.hasMissingValue() && inst.classValue() != predictions[i]) { // todo
                 misclassified.add(i);
             }
         }
@@ -201,7 +226,7 @@ public class SEUErrorSampling extends AFAMethod {
         List<Integer> matchedInstances = new ArrayList<>(esParam);
         if (misclassified.size() >= esParam) {
             // choose random 'esParam' misclassified instances
-            Collections.shuffle(misclassified);
+            Collections.shuffle(misclassified, random);
             matchedInstances.addAll(misclassified.subList(0, esParam));
         } else {
             matchedInstances.addAll(misclassified);
@@ -209,7 +234,7 @@ public class SEUErrorSampling extends AFAMethod {
             ArrayList<Pair<Double, Integer>> scores = new ArrayList<>(n);
             for (int i = 0; i < n; ++i) {
                 Instance inst = instances.instance(i);
-                if (inst.hasMissingValue() && !DatasetFactory.isInstMisclassified(inst, cls)) { // todo
+                if (inst.hasMissingValue() && inst.classValue() == predictions[i]) { // todo
                     double score = getUncertaintyScore(inst, cls);
                     scores.add(new Pair<>(score, i));
                 }
@@ -228,7 +253,7 @@ public class SEUErrorSampling extends AFAMethod {
     }
 
     // ok
-    private double getUncertaintyScore(Instance inst, J48 classifier) throws Exception {
+    private double getUncertaintyScore(Instance inst, CompiledJ48 classifier) {
         double[] probs = classifier.distributionForInstance(inst);
 
         // find class with maximum probability
@@ -251,12 +276,6 @@ public class SEUErrorSampling extends AFAMethod {
         return maxProb - secondMaxProb;
     }
 
-    private void acquireQuery(int instIndex, int attrIndex) throws Exception {
-        Instance inst = instances.instance(instIndex);
-        double value = queryManager.getValue(instIndex, attrIndex);
-        inst.setValue(attrIndex, value);
-    }
-
     public static void acquireQuery(QueryManager queryManager,
                                     Instances instances,
                                     int instIndex,
@@ -336,6 +355,39 @@ public class SEUErrorSampling extends AFAMethod {
 //        return newAcc - oldAcc;
 //    }
 
+    /**
+     * If true, cut points of discretization are fitted on the current
+     * instances at every step and all of them are discretized again,
+     * otherwise cut points are fixed and only acquired values are.
+     */
+    public void setRefitCutPoints(boolean refit) {
+        discMirror.setRefit(refit);
+    }
+
+    /**
+     * Bound the number of kept classifiers of attributes (all of them are
+     * kept by default), the rest are built again when they are needed.
+     *
+     * @param capacity
+     */
+    public void setAttrClassifiersCapacity(int capacity) {
+        attrClassifiers = new AttrClassifierCache(discInstances, m, capacity);
+    }
+
+    @Override
+    protected void valueAcquired(int instIndex, int attrIndex, double value) {
+        super.valueAcquired(instIndex, attrIndex, value);
+
+        discMirror.setValue(instIndex, attrIndex, value);
+        attrClassifiers.valueAcquired(instIndex, attrIndex);
+    }
+
+    @Override
+    protected void stateRestored() {
+        discMirror.sync();
+        attrClassifiers.clear();
+    }
+
     /**
      * todo
      *
@@ -347,135 +399,80 @@ public class SEUErrorSampling extends AFAMethod {
     }
 
     /**
-     * Build a classifier based on instances with class-attribute and attribute
-     * at 'attrIndex' position swapped.
-     * It is needed to predict the value at 'attrIndex' position for an instance
-     * with missing value for this attribute.
-     *
-     * @param attrIndex
-     * @throws Exception
+     * Returns possible queries of candidate instances encoded as (instIndex * m + attrIndex).
      */
-    private void initClassifierForAttr(int attrIndex) throws Exception {
-        int capacity = n;
-        for (int i = 0; i < n; ++i) {
-            if (Instance.isMissingValue(discInstances.instance(i).value(attrIndex))) {
-                --capacity;
-            }
-        }
-
-        Instances instancesForAttr = new Instances(discInstances, capacity);
-        boolean isUnaryClassifier = true;
-        int classValue = -1;
-        for (int i = 0; i < n; ++i) {
-            // todo !
-            if (!Instance.isMissingValue(discInstances.instance(i).value(attrIndex))) {
-                int value = (int) discInstances.instance(i).value(attrIndex);
-                if (classValue != -1 && classValue != value) {
-                    isUnaryClassifier = false;
-                } else {
-                    classValue = value;
-                }
-                instancesForAttr.add(discInstances.instance(i));
+    private int[] getCandidateCells() {
+        int[] cells = new int[getPossibleQueriesNum()];
+        int k = 0;
+        for (int i : candidateInstances) {
+            for (int j = state.nextAttr(i, 0); j >= 0; j = state.nextAttr(i, j + 1)) {
+                cells[k++] = i * m + j;
             }
         }
-        instancesForAttr.setClassIndex(attrIndex);
-        attrsInstances[attrIndex] = instancesForAttr;
-        if (isUnaryClassifier) {
-            attrsClassifiers[attrIndex] = new Pair<>(null, classValue);
-        } else {
-            J48 attrCls = DatasetFactory.staticMakeClassifier(instancesForAttr);
-            attrsClassifiers[attrIndex] = new Pair<>(attrCls, -1);
-        }
-    }
 
-    public static int getPossibleQueriesNum(Map<Integer, Set<Integer>> possibleQueries) {
-        int res = 0;
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            res += entry.getValue().size();
-        }
-
-        return res;
+        return cells;
     }
 
     public int getPossibleQueriesNum() {
         int res = 0;
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            res += entry.getValue().size();
+        for (int instIndex : candidateInstances) {
+            res += state.getInstPossibleQueriesNum(instIndex);
         }
 
         return res;
     }
 
-    class CodeRunner implements Runnable {
+    class CodeRunner implements TaskScheduler.ScoreTask, RacingEvaluator.ValueProbs {
 
         public Instances instances;
-        public int instIndex;
-        public int attrIndex;
-        public List<Pair<Double, Pair<Integer, Integer>>> scores;
         public final double oldAcc;
 
-        CodeRunner(Instances instances, int instIndex, int attrIndex, List<Pair<Double,
-                   Pair<Integer, Integer>>> scores, double oldAcc) {
+        CodeRunner(Instances instances, double oldAcc) {
             this.instances = instances;
-            this.instIndex = instIndex;
-            this.attrIndex = attrIndex;
-            this.scores = scores;
             this.oldAcc = oldAcc;
         }
 
         @Override
-        public void run() {
-            try {
-                double score = concurrentGetScore(instances, instIndex, attrIndex, oldAcc, attrsClassifiers, attrsInstances);
-                scores.add(new Pair<>(score, new Pair<>(instIndex, attrIndex)));
-
-                // todo what
-//                cls.setUseLaplace(true);
-//                cls.buildClassifier(instances);
-            } catch (Exception e) {
-                e.printStackTrace();
+        public double score(int instIndex, int attrIndex) throws Exception {
+            return concurrentGetScore(instances, instIndex, attrIndex, oldAcc);
+        }
+
+        @Override
+        public double[] getProbs(int instIndex, int attrIndex) throws Exception {
+            AttrClassifierCache.Entry attrClassifier = attrClassifiers.get(attrIndex);
+            if (attrClassifier.classifier == null) {
+                return null;
             }
+            return attrClassifier.distributionForInstance(instances.instance(instIndex));
+        }
+
+        @Override
+        public int getKnownValue(int attrIndex) throws Exception {
+            return attrClassifiers.get(attrIndex).knownValue;
         }
 
         private double concurrentGetScore(Instances instances,
                                          int instIndex,
                                          int attrIndex,
-                                         double oldAcc,
-                                         Pair<J48, Integer>[] attrsClassifiers,
-                                         Instances[] attrsInstances) throws Exception {
+                                         double oldAcc) throws Exception {
             double score = 0.0;
-            Pair<J48, Integer> attrClassifier = attrsClassifiers[attrIndex];
-            if (attrClassifier.first == null) {
-                if (attrClassifier.second == -1) {
-                    int x = 0;
-                }
-                score = concurrentGetUtility(instances, instIndex, attrIndex, (double) attrClassifier.second, oldAcc);
+            AttrClassifierCache.Entry attrClassifier = attrClassifiers.get(attrIndex);
+            if (attrClassifier.classifier == null) {
+                score = concurrentGetUtility(instIndex, attrIndex, (double) attrClassifier.knownValue, oldAcc);
             } else {
-                double[] estimatedProbs = concurrentGetProbs(instances, instIndex, attrIndex, attrClassifier.first, attrsInstances);
+                double[] estimatedProbs = attrClassifier.distributionForInstance(instances.instance(instIndex));
                 int numValues = instances.attribute(attrIndex).numValues();
                 for (int valueIndex = 0; valueIndex < numValues; ++valueIndex) {
+                    TaskScheduler.checkDeadline();
                     score += estimatedProbs[valueIndex] *
-                            concurrentGetUtility(instances, instIndex, attrIndex, valueIndex, oldAcc);
+                            concurrentGetUtility(instIndex, attrIndex, valueIndex, oldAcc);
                 }
             }
             return score;
         }
 
-        private double[] concurrentGetProbs(Instances instances,
-                                                   int instIndex,
-                                                   int attrIndex,
-                                                   J48 attrClassifier,
-                                                   Instances[] attrsInstances) throws Exception {
-            Instance inst = new Instance(instances.instance(instIndex));
-            inst.setDataset(attrsInstances[attrIndex]);
-            return attrClassifier.distributionForInstance(inst);
-        }
-
-        private double concurrentGetUtility(Instances instances, int instIndex, int attrIndex, double valueIndex, double oldAcc) throws Exception {
-            instances.instance(instIndex).setValue(attrIndex, valueIndex);
-            J48 newClassifier = DatasetFactory.staticMakeClassifier(instances);
-            double newAcc = DatasetFactory.calculateAccuracy(newClassifier, instances);
-            instances.instance(instIndex).setMissing(attrIndex);
+        private double concurrentGetUtility(int instIndex, int attrIndex, double valueIndex, double oldAcc) throws Exception {
+            double newAcc = whatIfClassifier.getAccuracyWithValue(instIndex, attrIndex, valueIndex);
 
             return newAcc - oldAcc;
         }
@@ -2,17 +2,11 @@ package ru.ifmo.ctddev.mazin.AFA;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.trees.J48;
-import weka.core.Instance;
 import weka.core.Instances;
 
-import weka.filters.Filter;
 import weka.filters.supervised.attribute.Discretize;
 
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
 *
@@ -28,10 +22,10 @@ public class SEUUniformSampling extends AFAMethod {
 
     private double[][] C; // todo cost matrix for all instance-feature pairs
 
-    private Pair<J48, Integer>[] attrsClassifiers; // for getProb(..) computing
-    private Instances[] attrsInstances; // for getProb(..) computing
+    AttrClassifierCache attrClassifiers; // classifiers of attributes for getProb(..) computing
+    private WhatIfJ48 whatIfClassifier; // tree of discInstances for getUtility(..) computing
 
-    Discretize discretizer;
+    DiscretizedMirror discMirror; // discInstances updated with acquired values
     Set<Integer> numericAttrsIndexes;
 
     Instances discInstances;
@@ -42,71 +36,80 @@ public class SEUUniformSampling extends AFAMethod {
                               int b,
                               Discretize discretizer,
                               Set<Integer> numericAttrsIndexes) throws Exception {
-        this.instances = new Instances(instances);
+        this(instances, queryManager, alpha, b, discretizer, numericAttrsIndexes, new Random());
+    }
+
+    public SEUUniformSampling(Instances instances,
+                              QueryManager queryManager,
+                              int alpha,
+                              int b,
+                              Discretize discretizer,
+                              Set<Integer> numericAttrsIndexes,
+                              Random random) throws Exception {
+        this.random = random;
+        setInstances(instances);
         this.queryManager = queryManager;
         this.alpha = alpha;
         this.b = b;
-        this.discretizer = discretizer; // todo;
         this.numericAttrsIndexes = numericAttrsIndexes; // todo
 
         init(alpha);
+
+        discMirror = new DiscretizedMirror(this.instances, discretizer);
+        discInstances = discMirror.getInstances();
+        attrClassifiers = new AttrClassifierCache(discInstances, m, Math.max(1, m));
     }
 
     private void init(int alpha) throws Exception {
         n = instances.numInstances();
         m = instances.numAttributes() - 1;
 
-        ArrayList<Pair<Integer, Integer>> possibleQueriesAsList = new ArrayList<>();
-        for (int i = 0; i < n; ++i) {
-            for (int j = 0; j < m; ++j) {
-                if (instances.instance(i).isMissing(j)) {
-                    possibleQueriesAsList.add(new Pair<>(i, j));
-                }
-            }
-        }
+        state = new AcquisitionState(instances, m);
+        int[] missingCells = state.toCellArray();
 
         // init possible queries
-        realPossibleQueries = possibleQueriesAsList.size();
+        realPossibleQueries = missingCells.length;
 
         if (alpha < 1) {
             throw new IllegalArgumentException("'alpha' should be > 1");
         }
-        alpha = Math.min(alpha, possibleQueriesAsList.size() / b);
-
-        Collections.shuffle(possibleQueriesAsList);
-        List<Pair<Integer, Integer>> uniformSample = possibleQueriesAsList.subList(0, alpha * b);
+        alpha = Math.min(alpha, missingCells.length / b);
 
-        possibleQueries = new HashMap<>(n);
-        for (Pair<Integer, Integer> query : uniformSample) {
-            if (!possibleQueries.containsKey(query.first)) {
-                possibleQueries.put(query.first, new HashSet<>());
-            }
-            possibleQueries.get(query.first).add(query.second);
+        // uniform sample of 'alpha * b' queries
+        state.clear();
+        for (int k : CellSampler.sample(missingCells.length, alpha * b, random)) {
+            state.add(missingCells[k] / m, missingCells[k] % m);
         }
     }
 
     public List<Pair<List<Pair<Integer, Integer>>, J48>> perform(int k) throws Exception {
 //      todo  curMissingCells = chooseSubsetOfMissingCells(curMissingCells);
+        long start = phaseStarted();
         J48 classifier = makeClassifier();
+        phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
         List<Pair<List<Pair<Integer, Integer>>, J48>> res = new LinkedList<>();
         while (k-- > 0) {
-            if (possibleQueries.size() == 0) {
+            if (state.isEmpty()) {
                 break; // nothing to query
             }
+            stepStarted();
             int batchSize = b;
             int possibleQueriesNum = getPossibleQueriesNum();
             if (possibleQueriesNum < b) { // todo
                 batchSize = possibleQueriesNum;
             }
 
-            // set discInstances
-            discInstances = Filter.useFilter(instances, discretizer);
+            // set discInstances, values acquired so far are already in them
+            start = phaseStarted();
+            discInstances = discMirror.refresh();
+            phaseFinished(MetricsListener.Phase.DISCRETIZATION, start);
 
             List<Pair<Integer, Integer>> bestQueries = concurrentPerformStep(batchSize, classifier);
+            start = phaseStarted();
             classifier = makeClassifier();
+            phaseFinished(MetricsListener.Phase.CLASSIFIER_BUILD, start);
             res.add(new Pair<>(bestQueries, classifier));
-
-            updatePossibleQueries();
+            stepFinished(lastStepReport.getScoredNum(), bestQueries.size());
         }
 
         return res;
@@ -149,62 +152,50 @@ public class SEUUniformSampling extends AFAMethod {
      * @return
      * @throws Exception
      */
-    private List<Pair<Integer, Integer>> concurrentPerformStep(int batchSize, J48 cls) throws Exception {
-        attrsClassifiers = new Pair[m];
-        attrsInstances = new Instances[m];
-        for (int i = 0; i < m; ++i) {
-            initClassifierForAttr(i);
+    List<Pair<Integer, Integer>> concurrentPerformStep(int batchSize, J48 cls) throws Exception {
+        long stepStart = System.nanoTime();
+        long start = phaseStarted();
+        attrClassifiers.setInstances(discInstances);
+        if (racing || stepBudgetMillis == 0) {
+            attrClassifiers.prepare(state.toCellArray(), scheduler); // within the budget they are built when needed
         }
+        whatIfClassifier = new WhatIfJ48(discInstances);
 
         double oldAcc = DatasetFactory.calculateAccuracy(cls, instances);
 
-        List<Pair<Double, Pair<Integer, Integer>>> scores = Collections.synchronizedList(new ArrayList<>());
-        ExecutorService execSvc = Executors.newCachedThreadPool();
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            int i = entry.getKey();
-            for (Integer j : entry.getValue()) {
-                CodeRunner runner = new CodeRunner(new Instances(discInstances), i, j, scores, oldAcc);
-                execSvc.execute(runner);
-            }
+        // Choose best 'b' queries to acquire:
+        BoundedTopK topQueries = new BoundedTopK(batchSize);
+        CodeRunner runner = new CodeRunner(discInstances, oldAcc);
+        if (racing) {
+            RacingEvaluator evaluator = new RacingEvaluator(whatIfClassifier, discInstances,
+                    RacingEvaluator.DEFAULT_DELTA, state.getTotalNumQueries(), scheduler);
+            lastStepReport = evaluator.select(state.toCellArray(), m, runner, oldAcc, topQueries);
+        } else if (stepBudgetMillis > 0) {
+            int[] priorityCells = getPriorityCells(cls); // predicting instances counts against the budget too
+            long budgetNanos = Math.max(0, stepBudgetMillis * 1000000 - (System.nanoTime() - stepStart));
+            lastStepReport = scheduler.selectByPriority(priorityCells, m, topQueries, runner, budgetNanos);
+        } else {
+            lastStepReport = scheduler.selectByAttribute(state.toCellArray(), m, topQueries, runner);
         }
-        execSvc.shutdown();
-        execSvc.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES); // todo
+        phaseFinished(MetricsListener.Phase.SCORING, start);
 
-        // Choose best 'b' queries to acquire:
-        Collections.sort(scores, (o1, o2) -> o1.first < o2.first ? 1 : o1.first.equals(o2.first) ? 0 : -1);
-        ArrayList<Pair<Integer, Integer>> bestQueries = scores.subList(0, batchSize).stream()
-                .map(pair -> pair.second)
-                .collect(Collectors.toCollection(ArrayList::new));
+        start = phaseStarted();
+        List<Pair<Integer, Integer>> bestQueries = new ArrayList<>(batchSize);
+        for (int cell : topQueries.pollSortedIds()) {
+            bestQueries.add(new Pair<>(cell / m, cell % m));
+        }
 
         for (Pair<Integer, Integer> query : bestQueries) {
-            acquireQuery(query.first, query.second);
-
-            possibleQueries.get(query.first).remove(query.second);
+            state.acquire(query.first, query.second);
         }
+        requestValues(bestQueries);
+        phaseFinished(MetricsListener.Phase.SELECTION, start);
 
-        // update discInstances
-        discInstances = Filter.useFilter(instances, discretizer);
+        awaitValues(); // values are set to discInstances too
 
         return bestQueries;
     }
 
-    /**
-     * Remove complete instances from 'possibleQueries'
-     */
-    private void updatePossibleQueries() {
-        Set<Integer> completeInstances = possibleQueries.entrySet().stream()
-                .filter(entry -> entry.getValue().isEmpty())
-                .map(Map.Entry::getKey).collect(Collectors.toSet());
-
-        completeInstances.forEach(possibleQueries::remove);
-    }
-
-    private void acquireQuery(int instIndex, int attrIndex) throws Exception {
-        Instance inst = instances.instance(instIndex);
-        double value = queryManager.getValue(instIndex, attrIndex);
-        inst.setValue(attrIndex, value);
-    }
-
 //    public static void acquireQuery(QueryManager queryManager,
 //                                    Instances instances,
 //                                    int instIndex,
@@ -287,6 +278,39 @@ public class SEUUniformSampling extends AFAMethod {
 //        return newAcc - oldAcc;
 //    }
 
+    /**
+     * If true, cut points of discretization are fitted on the current
+     * instances at every step and all of them are discretized again,
+     * otherwise cut points are fixed and only acquired values are.
+     */
+    public void setRefitCutPoints(boolean refit) {
+        discMirror.setRefit(refit);
+    }
+
+    /**
+     * Bound the number of kept classifiers of attributes (all of them are
+     * kept by default), the rest are built again when they are needed.
+     *
+     * @param capacity
+     */
+    public void setAttrClassifiersCapacity(int capacity) {
+        attrClassifiers = new AttrClassifierCache(discInstances, m, capacity);
+    }
+
+    @Override
+    protected void valueAcquired(int instIndex, int attrIndex, double value) {
+        super.valueAcquired(instIndex, attrIndex, value);
+
+        discMirror.setValue(instIndex, attrIndex, value);
+        attrClassifiers.valueAcquired(instIndex, attrIndex);
+    }
+
+    @Override
+    protected void stateRestored() {
+        discMirror.sync();
+        attrClassifiers.clear();
+    }
+
     /**
      * todo
      *
@@ -297,118 +321,89 @@ public class SEUUniformSampling extends AFAMethod {
         return DatasetFactory.staticMakeClassifier(instances);
     }
 
-    private void initClassifierForAttr(int attrIndex) throws Exception {
-        int capacity = n;
-        for (int i = 0; i < n; ++i) {
-            if (Instance.isMissingValue(discInstances.instance(i).value(attrIndex))) {
-                --capacity;
-            }
-        }
+    public int getPossibleQueriesNum() {
+        return state.getPossibleQueriesNum();
+    }
 
-        Instances instancesForAttr = new Instances(discInstances, capacity);
-        boolean isUnaryClassifier = true;
-        int classValue = -1;
+    /**
+     * Possible queries encoded as (instIndex * m + attrIndex), queries of
+     * instances with smaller margin of 'cls' first.
+     */
+    private int[] getPriorityCells(J48 cls) throws Exception {
+        double[][] distributions = CompiledJ48.compile(cls).distributions(instances);
+        double[] margins = new double[n];
         for (int i = 0; i < n; ++i) {
-            // todo !
-            if (!Instance.isMissingValue(discInstances.instance(i).value(attrIndex))) {
-                int value = (int) discInstances.instance(i).value(attrIndex);
-                if (classValue != -1 && classValue != value) {
-                    isUnaryClassifier = false;
-                } else {
-                    classValue = value;
+            double max = 0.0;
+            double secondMax = 0.0;
+            for (double prob : distributions[i]) {
+                if (prob > max) {
+                    secondMax = max;
+                    max = prob;
+                } else if (prob > secondMax) {
+                    secondMax = prob;
                 }
-                instancesForAttr.add(discInstances.instance(i));
             }
-        }
-        instancesForAttr.setClassIndex(attrIndex);
-        attrsInstances[attrIndex] = instancesForAttr;
-        if (isUnaryClassifier) {
-            attrsClassifiers[attrIndex] = new Pair<>(null, classValue);
-        } else {
-            J48 attrCls = DatasetFactory.staticMakeClassifier(instancesForAttr);
-            attrsClassifiers[attrIndex] = new Pair<>(attrCls, -1);
-        }
-    }
-
-    public int getPossibleQueriesNum() {
-        int res = 0;
-        for (Map.Entry<Integer, Set<Integer>> entry : possibleQueries.entrySet()) {
-            res += entry.getValue().size();
+            margins[i] = max - secondMax;
         }
 
-        return res;
+        return Arrays.stream(state.toCellArray())
+                .boxed()
+                .sorted(Comparator.comparingDouble(cell -> margins[cell / m]))
+                .mapToInt(Integer::intValue)
+                .toArray();
     }
 
-    class CodeRunner implements Runnable {
+    class CodeRunner implements TaskScheduler.ScoreTask, RacingEvaluator.ValueProbs {
 
         public Instances instances;
-        public int instIndex;
-        public int attrIndex;
-        public List<Pair<Double, Pair<Integer, Integer>>> scores;
         public final double oldAcc;
 
-        CodeRunner(Instances instances, int instIndex, int attrIndex, List<Pair<Double,
-                Pair<Integer, Integer>>> scores, double oldAcc) {
+        CodeRunner(Instances instances, double oldAcc) {
             this.instances = instances;
-            this.instIndex = instIndex;
-            this.attrIndex = attrIndex;
-            this.scores = scores;
             this.oldAcc = oldAcc;
         }
 
         @Override
-        public void run() {
-            try {
-                double score = concurrentGetScore(instances, instIndex, attrIndex, oldAcc, attrsClassifiers, attrsInstances);
-                scores.add(new Pair<>(score, new Pair<>(instIndex, attrIndex)));
-
-                // todo what
-//                cls.setUseLaplace(true);
-//                cls.buildClassifier(instances);
-            } catch (Exception e) {
-                e.printStackTrace();
+        public double score(int instIndex, int attrIndex) throws Exception {
+            return concurrentGetScore(instances, instIndex, attrIndex, oldAcc);
+        }
+
+        @Override
+        public double[] getProbs(int instIndex, int attrIndex) throws Exception {
+            AttrClassifierCache.Entry attrClassifier = attrClassifiers.get(attrIndex);
+            if (attrClassifier.classifier == null) {
+                return null;
             }
+            return attrClassifier.distributionForInstance(instances.instance(instIndex));
+        }
+
+        @Override
+        public int getKnownValue(int attrIndex) throws Exception {
+            return attrClassifiers.get(attrIndex).knownValue;
         }
 
         private double concurrentGetScore(Instances instances,
                                           int instIndex,
                                           int attrIndex,
-                                          double oldAcc,
-                                          Pair<J48, Integer>[] attrsClassifiers,
-                                          Instances[] attrsInstances) throws Exception {
+                                          double oldAcc) throws Exception {
             double score = 0.0;
-            Pair<J48, Integer> attrClassifier = attrsClassifiers[attrIndex];
-            if (attrClassifier.first == null) {
-                if (attrClassifier.second == -1) {
-                    int x = 0;
-                }
-                score = concurrentGetUtility(instances, instIndex, attrIndex, (double) attrClassifier.second, oldAcc);
+            AttrClassifierCache.Entry attrClassifier = attrClassifiers.get(attrIndex);
+            if (attrClassifier.classifier == null) {
+                score = concurrentGetUtility(instIndex, attrIndex, (double) attrClassifier.knownValue, oldAcc);
             } else {
-                double[] estimatedProbs = concurrentGetProbs(instances, instIndex, attrIndex, attrClassifier.first, attrsInstances);
+                double[] estimatedProbs = attrClassifier.distributionForInstance(instances.instance(instIndex));
                 int numValues = instances.attribute(attrIndex).numValues();
                 for (int valueIndex = 0; valueIndex < numValues; ++valueIndex) {
+                    TaskScheduler.checkDeadline();
                     score += estimatedProbs[valueIndex] *
-                            concurrentGetUtility(instances, instIndex, attrIndex, valueIndex, oldAcc);
+                            concurrentGetUtility(instIndex, attrIndex, valueIndex, oldAcc);
                 }
             }
             return score;
         }
 
-        private double[] concurrentGetProbs(Instances instances,
-                                            int instIndex,
-                                            int attrIndex,
-                                            J48 attrClassifier,
-                                            Instances[] attrsInstances) throws Exception {
-            Instance inst = new Instance(instances.instance(instIndex));
-            inst.setDataset(attrsInstances[attrIndex]);
-            return attrClassifier.distributionForInstance(inst);
-        }
-
-        private double concurrentGetUtility(Instances instances, int instIndex, int attrIndex, double valueIndex, double oldAcc) throws Exception {
-            instances.instance(instIndex).setValue(attrIndex, valueIndex);
-            J48 newClassifier = DatasetFactory.staticMakeClassifier(instances);
-            double newAcc = DatasetFactory.calculateAccuracy(newClassifier, instances);
-            instances.instance(instIndex).setMissing(attrIndex);
+        private double concurrentGetUtility(int instIndex, int attrIndex, double valueIndex, double oldAcc) throws Exception {
+            double newAcc = whatIfClassifier.getAccuracyWithValue(instIndex, attrIndex, valueIndex);
 
             return newAcc - oldAcc;
         }
@@ -3,15 +3,44 @@ package ru.ifmo.ctddev.mazin.AFA;
 import weka.core.Instances;
 import weka.core.Attribute;
 
-public class SimpleQueryManager implements QueryManager {
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class SimpleQueryManager implements BatchQueryManager {
     private Instances instances;
+    private int[] rows; // rows of 'instances' by instance index of queries, null if they are the same
 
     public SimpleQueryManager(Instances instances) {
         this.instances = instances;
     }
 
+    /**
+     * Values of instances made of rows of 'instances', e.g. of a FoldView.
+     *
+     * @param instances
+     * @param rows rows of 'instances' by instance index of queries
+     */
+    public SimpleQueryManager(Instances instances, int[] rows) {
+        this.instances = instances;
+        this.rows = rows;
+    }
+
     @Override
     public double getValue(int instanceIndex, int attributeIndex) {
-        return instances.instance(instanceIndex).value(attributeIndex);
+        int row = rows == null ? instanceIndex : rows[instanceIndex];
+        return instances.instance(row).value(attributeIndex);
+    }
+
+    /**
+     * Values are looked up at once, the future is already completed.
+     */
+    @Override
+    public CompletableFuture<double[]> getValues(List<Pair<Integer, Integer>> queries) {
+        double[] values = new double[queries.size()];
+        int k = 0;
+        for (Pair<Integer, Integer> query : queries) {
+            values[k++] = getValue(query.first, query.second);
+        }
+        return CompletableFuture.completedFuture(values);
     }
 }
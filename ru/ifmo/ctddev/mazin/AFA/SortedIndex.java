@@ -0,0 +1,251 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.util.Arrays;
+
+/**
+ * Ids in [0, capacity) sorted by key, the largest key first and equal keys
+ * by smaller id, kept up to date as keys change.
+ *
+ * Changes (new keys, added and removed ids) are collected and applied by
+ * refresh(). If there are few of them, every changed id is moved to its
+ * new rank found by binary search and only ids between its old and new
+ * ranks are shifted (ids which aren't moved yet are compared by the keys
+ * they were placed with, so the order being searched stays sorted).
+ * Otherwise unchanged ids are compacted (they stay sorted), changed ones
+ * are sorted and both runs are merged, which takes linear time plus
+ * sorting of the changed ids. Everything is held in
+ * primitive arrays allocated once.
+ */
+public class SortedIndex {
+    private static final int MOVES_FACTOR = 64; // ids are moved one by one if (changed * MOVES_FACTOR < size)
+
+    private final double[] keys; // by id
+    private final int[] order; // ids in sorted order, the first 'size' are used
+    private final double[] orderKeys; // keys with which ids of 'order' were placed, by rank
+    private final int[] ranks; // rank of id in 'order', -1 if it isn't there
+    private final boolean[] isMember; // whether id is in the index after refresh()
+    private int size;
+
+    private final int[] changed; // ids changed since the last refresh()
+    private final boolean[] isChanged;
+    private int changedNum;
+    private boolean isRemoved; // whether an id was removed since the last refresh()
+
+    private final int[] buffer; // for sorting and merging
+
+    /**
+     * @param capacity ids are in [0, capacity)
+     */
+    public SortedIndex(int capacity) {
+        keys = new double[capacity];
+        order = new int[capacity];
+        orderKeys = new double[capacity];
+        ranks = new int[capacity];
+        isMember = new boolean[capacity];
+        changed = new int[capacity];
+        isChanged = new boolean[capacity];
+        buffer = new int[capacity];
+        Arrays.fill(ranks, -1);
+    }
+
+    /**
+     * @return number of ids, valid after refresh()
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param rank in [0, size())
+     * @return id of the rank, valid after refresh()
+     */
+    public int get(int rank) {
+        return order[rank];
+    }
+
+    public double getKey(int id) {
+        return keys[id];
+    }
+
+    public boolean contains(int id) {
+        return isMember[id];
+    }
+
+    /**
+     * Add id with key, or set its key if it's already added.
+     */
+    public void add(int id, double key) {
+        if (!isMember[id]) {
+            isMember[id] = true;
+            keys[id] = key;
+            markChanged(id);
+        } else {
+            setKey(id, key);
+        }
+    }
+
+    /**
+     * Set key of an added id, ids which aren't added are ignored.
+     */
+    public void setKey(int id, double key) {
+        if (isMember[id] && Double.compare(keys[id], key) != 0) {
+            keys[id] = key;
+            markChanged(id);
+        }
+    }
+
+    public void remove(int id) {
+        if (isMember[id]) {
+            isMember[id] = false;
+            isRemoved = true;
+            markChanged(id);
+        }
+    }
+
+    private void markChanged(int id) {
+        if (!isChanged[id]) {
+            isChanged[id] = true;
+            changed[changedNum++] = id;
+        }
+    }
+
+    /**
+     * Apply changes since the last refresh() to the order.
+     */
+    public void refresh() {
+        if (changedNum == 0) {
+            return;
+        }
+
+        if (!isRemoved && changedNum * MOVES_FACTOR < size) {
+            for (int k = 0; k < changedNum; ++k) {
+                move(changed[k]);
+            }
+        } else {
+            rebuild();
+        }
+
+        for (int k = 0; k < changedNum; ++k) {
+            isChanged[changed[k]] = false;
+        }
+        changedNum = 0;
+        isRemoved = false;
+    }
+
+    /**
+     * Whether 'id1' goes before 'id2'.
+     */
+    private boolean isBefore(int id1, int id2) {
+        return isBefore(keys[id1], id1, keys[id2], id2);
+    }
+
+    private static boolean isBefore(double key1, int id1, double key2, int id2) {
+        int cmp = Double.compare(key2, key1);
+        return cmp < 0 || cmp == 0 && id1 < id2;
+    }
+
+    /**
+     * Put a changed member id to its rank, other ids are sorted by 'orderKeys'.
+     */
+    private void move(int id) {
+        int rank = ranks[id];
+        if (rank < 0) { // new id
+            rank = size++;
+            order[rank] = id;
+        }
+
+        // binary search of the rank among the other ids
+        double key = keys[id];
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int other = mid < rank ? mid : mid + 1;
+            if (isBefore(key, id, orderKeys[other], order[other])) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+
+        if (lo < rank) {
+            System.arraycopy(order, lo, order, lo + 1, rank - lo);
+            System.arraycopy(orderKeys, lo, orderKeys, lo + 1, rank - lo);
+        } else if (lo > rank) {
+            System.arraycopy(order, rank + 1, order, rank, lo - rank);
+            System.arraycopy(orderKeys, rank + 1, orderKeys, rank, lo - rank);
+        }
+        order[lo] = id;
+        orderKeys[lo] = key;
+        for (int r = Math.min(lo, rank); r <= Math.max(lo, rank); ++r) {
+            ranks[order[r]] = r;
+        }
+    }
+
+    /**
+     * Merge unchanged ids (which are sorted) with sorted changed ones.
+     */
+    private void rebuild() {
+        int keptNum = 0;
+        for (int r = 0; r < size; ++r) {
+            int id = order[r];
+            if (!isChanged[id]) {
+                order[keptNum++] = id;
+            }
+        }
+
+        int addedNum = 0;
+        for (int k = 0; k < changedNum; ++k) {
+            int id = changed[k];
+            ranks[id] = -1;
+            if (isMember[id]) {
+                changed[addedNum++] = id; // ids before 'k' are read already
+            } else {
+                isChanged[id] = false;
+            }
+        }
+        sort(changed, addedNum);
+
+        // merge from the end, so kept ids are never overwritten before they are read
+        int r = keptNum + addedNum;
+        int k1 = keptNum - 1;
+        int k2 = addedNum - 1;
+        while (k2 >= 0) {
+            if (k1 >= 0 && isBefore(changed[k2], order[k1])) {
+                order[--r] = order[k1--];
+            } else {
+                order[--r] = changed[k2--];
+            }
+        }
+        size = keptNum + addedNum;
+        for (r = 0; r < size; ++r) {
+            ranks[order[r]] = r;
+            orderKeys[r] = keys[order[r]];
+        }
+    }
+
+    /**
+     * Merge sort of ids[0, len) by isBefore(..).
+     */
+    private void sort(int[] ids, int len) {
+        for (int width = 1; width < len; width *= 2) {
+            for (int from = 0; from < len - width; from += 2 * width) {
+                int mid = from + width;
+                int to = Math.min(len, mid + width);
+                int k1 = from;
+                int k2 = mid;
+                int k = from;
+                while (k1 < mid && k2 < to) {
+                    buffer[k++] = isBefore(ids[k2], ids[k1]) ? ids[k2++] : ids[k1++];
+                }
+                while (k1 < mid) {
+                    buffer[k++] = ids[k1++];
+                }
+                while (k2 < to) {
+                    buffer[k++] = ids[k2++];
+                }
+                System.arraycopy(buffer, from, ids, from, to - from);
+            }
+        }
+    }
+}
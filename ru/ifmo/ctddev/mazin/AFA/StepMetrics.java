@@ -0,0 +1,168 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of step metrics: histograms of durations of phases and steps,
+ * of numbers of candidates and acquired queries and of allocated bytes.
+ *
+ * Histograms have power-of-two buckets, so percentiles are upper bounds
+ * of buckets (within a factor of 2). One registry may be shared by methods
+ * of several folds running at once.
+ */
+public class StepMetrics implements MetricsListener {
+    public static final String HEADER = "metric,unit,lower,upper,count";
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = getThreadBean(); // null if not supported
+
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>(); // in order of the first record
+
+    @Override
+    public synchronized void phaseFinished(Phase phase, long nanos) {
+        getHistogram(phase.name(), "ns").add(nanos);
+    }
+
+    @Override
+    public synchronized void stepFinished(int candidatesNum, int acquiredNum, long nanos, long allocatedBytes) {
+        getHistogram("STEP", "ns").add(nanos);
+        getHistogram("CANDIDATES", "queries").add(candidatesNum);
+        getHistogram("ACQUIRED", "queries").add(acquiredNum);
+        if (allocatedBytes >= 0) {
+            getHistogram("ALLOCATED", "bytes").add(allocatedBytes);
+        }
+    }
+
+    private Histogram getHistogram(String metric, String unit) {
+        return histograms.computeIfAbsent(metric, key -> new Histogram(unit));
+    }
+
+    /**
+     * @param metric name of phase (see MetricsListener.Phase) or one of STEP,
+     *               CANDIDATES, ACQUIRED, ALLOCATED
+     * @return number of records of the metric
+     */
+    public synchronized long getCount(String metric) {
+        Histogram histogram = histograms.get(metric);
+        return histogram == null ? 0 : histogram.count;
+    }
+
+    /**
+     * @param metric
+     * @param quantile in [0, 1]
+     * @return upper bound of the quantile of the metric, 0 if there are no records
+     */
+    public synchronized long getQuantile(String metric, double quantile) {
+        Histogram histogram = histograms.get(metric);
+        return histogram == null ? 0 : histogram.getQuantile(quantile);
+    }
+
+    /**
+     * Write non-empty buckets of all histograms as CSV lines
+     * (metric, unit, lower, upper, count), bucket is [lower, upper).
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void writeCsv(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                for (int k = 0; k < Histogram.BUCKETS_NUM; ++k) {
+                    if (histogram.buckets[k] > 0) {
+                        writer.write(entry.getKey() + "," + histogram.unit + "," + Histogram.getLower(k) + "," +
+                                Histogram.getUpper(k) + "," + histogram.buckets[k]);
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Summary of every metric: count, mean, p50, p90, p99, max.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            sb.append(String.format("%s: count = %d, mean = %.1f, p50 = %d, p90 = %d, p99 = %d, max = %d %s%n",
+                    entry.getKey(), histogram.count, histogram.sum / (double) Math.max(1, histogram.count),
+                    histogram.getQuantile(0.5), histogram.getQuantile(0.9), histogram.getQuantile(0.99),
+                    histogram.max, histogram.unit));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, -1 if JVM doesn't
+     * support it.
+     */
+    public static long getThreadAllocatedBytes() {
+        if (THREAD_BEAN == null || !THREAD_BEAN.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        return sunBean.isThreadAllocatedMemorySupported() ? sunBean : null;
+    }
+
+    private static class Histogram {
+        static final int BUCKETS_NUM = 64; // bucket k > 0 is [2^(k-1), 2^k), bucket 0 is [0, 1)
+
+        final String unit;
+        final long[] buckets = new long[BUCKETS_NUM];
+        long count;
+        long sum;
+        long max;
+
+        Histogram(String unit) {
+            this.unit = unit;
+        }
+
+        void add(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative value " + value + " of " + unit);
+            }
+            ++buckets[64 - Long.numberOfLeadingZeros(value)];
+            ++count;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        long getQuantile(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int k = 0; k < BUCKETS_NUM; ++k) {
+                seen += buckets[k];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(getUpper(k), max);
+                }
+            }
+            return max;
+        }
+
+        static long getLower(int k) {
+            return k == 0 ? 0 : 1L << (k - 1);
+        }
+
+        static long getUpper(int k) {
+            return k == 63 ? Long.MAX_VALUE : 1L << k;
+        }
+    }
+}
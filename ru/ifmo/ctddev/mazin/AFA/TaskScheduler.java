@@ -0,0 +1,500 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long-lived work-stealing scheduler for scoring of candidate queries.
+ *
+ * One scheduler is shared by all AFA methods (see getShared()), so several
+ * methods or folds running at once don't oversubscribe the machine.
+ * Parallelism of the shared scheduler is taken from the system property
+ * "afa.parallelism" (number of available processors by default).
+ *
+ * Candidates are sorted by attribute and split into chunks along attribute
+ * boundaries when possible, so a worker mostly scores queries of one
+ * attribute. The first exception thrown by a task stops the step and is
+ * rethrown to the caller.
+ *
+ * selectByPriority(..) is the anytime variant: candidates are scored in
+ * the given order until the time budget of the step runs out.
+ *
+ * If the calling thread has an allocation counter (see
+ * setAllocationCounter(..)), bytes allocated by tasks run on other threads
+ * are added to it, allocations on the calling thread itself are left to
+ * the caller.
+ */
+public class TaskScheduler {
+    public static final String PARALLELISM_PROPERTY = "afa.parallelism";
+
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private static TaskScheduler shared;
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>(); // of the task run by the thread, null if none
+    private static final ThreadLocal<LongAdder> allocationCounter =
+            new ThreadLocal<>(); // of tasks submitted by the thread, null if none
+
+    private final ForkJoinPool pool;
+
+    public TaskScheduler(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("'parallelism' should be > 0");
+        }
+
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public static synchronized TaskScheduler getShared() {
+        if (shared == null) {
+            shared = new TaskScheduler(Integer.getInteger(PARALLELISM_PROPERTY,
+                    Runtime.getRuntime().availableProcessors()));
+        }
+        return shared;
+    }
+
+    /**
+     * Replace the shared scheduler, the previous one is shut down.
+     */
+    public static synchronized void setShared(TaskScheduler scheduler) {
+        if (shared != null && shared != scheduler) {
+            shared.shutdown();
+        }
+        shared = scheduler;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Task to run for one query (instIndex, attrIndex).
+     */
+    public interface CellTask {
+        void run(int instIndex, int attrIndex) throws Exception;
+    }
+
+    /**
+     * Score of one query (instIndex, attrIndex).
+     */
+    public interface ScoreTask {
+        double score(int instIndex, int attrIndex) throws Exception;
+    }
+
+    /**
+     * Run 'task' for every query and wait for all of them.
+     *
+     * @param cells queries encoded as (instIndex * m + attrIndex)
+     * @param m number of attributes
+     * @param task
+     * @return report of the step
+     * @throws Exception the first exception thrown by the task
+     */
+    public StepReport runByAttribute(int[] cells, int m, CellTask task) throws Exception {
+        return run(cells, m, (step, from, to) -> {
+            for (int k = from; k < to && !step.isFailed.get(); ++k) {
+                task.run(step.cells[k] / m, step.cells[k] % m);
+            }
+        });
+    }
+
+    /**
+     * Score every query and keep the best ones in 'best'.
+     *
+     * Every chunk keeps its own top entries, they are merged once all chunks
+     * are done, so workers don't share any state. Ids of the entries are
+     * the cells, so the result doesn't depend on the order in which chunks
+     * are scored.
+     *
+     * @param cells queries encoded as (instIndex * m + attrIndex)
+     * @param m number of attributes
+     * @param best empty top with capacity equal to the number of queries to select
+     * @param task
+     * @return report of the step
+     * @throws Exception the first exception thrown by the task, or
+     *         IllegalStateException if fewer queries than expected were scored
+     */
+    public StepReport selectByAttribute(int[] cells, int m, BoundedTopK best, ScoreTask task) throws Exception {
+        int capacity = best.capacity();
+        ConcurrentLinkedQueue<BoundedTopK> chunkTops = new ConcurrentLinkedQueue<>();
+        StepReport report = run(cells, m, (step, from, to) -> {
+            BoundedTopK top = new BoundedTopK(Math.min(capacity, to - from));
+            for (int k = from; k < to && !step.isFailed.get(); ++k) {
+                int cell = step.cells[k];
+                top.offer(task.score(cell / m, cell % m), cell);
+            }
+            chunkTops.add(top);
+        });
+
+        for (BoundedTopK top : chunkTops) {
+            best.merge(top);
+        }
+        if (best.size() < Math.min(capacity, cells.length)) {
+            throw new IllegalStateException("Only " + best.size() + " of " + Math.min(capacity, cells.length)
+                    + " queries were scored");
+        }
+        return report;
+    }
+
+    /**
+     * Score queries in order of 'cells' (the most promising first) until
+     * 'budgetNanos' passes since the start, keep the best scored ones in
+     * 'best'. A task being scored when the deadline passes is cancelled if
+     * it calls checkDeadline(), otherwise it is finished. If fewer queries
+     * than capacity of 'best' are scored, the rest is filled with unscored
+     * queries in order of 'cells' (with score -Infinity).
+     *
+     * @param cells queries encoded as (instIndex * m + attrIndex) in order of priority
+     * @param m number of attributes
+     * @param best empty top with capacity equal to the number of queries to select
+     * @param task
+     * @param budgetNanos
+     * @return report of the step, getScoredNum() is the number of scored queries
+     * @throws Exception the first exception thrown by the task
+     */
+    public StepReport selectByPriority(int[] cells, int m, BoundedTopK best, ScoreTask task, long budgetNanos)
+            throws Exception {
+        int capacity = best.capacity();
+        long startTime = System.nanoTime();
+        long stepDeadline = startTime + budgetNanos;
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean isFailed = new AtomicBoolean();
+        boolean[] isScored = new boolean[cells.length];
+        LongAdder busyNanos = new LongAdder();
+        AllocationMeter meter = new AllocationMeter();
+        ConcurrentLinkedQueue<BoundedTopK> workerTops = new ConcurrentLinkedQueue<>();
+
+        List<RecursiveAction> workers = new ArrayList<>(getParallelism());
+        for (int w = 0; w < getParallelism(); ++w) {
+            workers.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    Long outerDeadline = deadline.get();
+                    deadline.set(stepDeadline);
+                    long workerStart = System.nanoTime();
+                    long startBytes = meter.start();
+                    BoundedTopK top = new BoundedTopK(capacity);
+                    try {
+                        int k;
+                        while (!isFailed.get() && System.nanoTime() < stepDeadline
+                                && (k = next.getAndIncrement()) < cells.length) {
+                            int cell = cells[k];
+                            double score;
+                            try {
+                                score = task.score(cell / m, cell % m);
+                            } catch (CancellationException e) {
+                                break;
+                            }
+                            top.offer(score, cell);
+                            isScored[k] = true;
+                        }
+                    } catch (Exception e) {
+                        isFailed.set(true);
+                        throw new TaskException(e);
+                    } finally {
+                        workerTops.add(top);
+                        deadline.set(outerDeadline);
+                        busyNanos.add(System.nanoTime() - workerStart);
+                        meter.finish(startBytes);
+                    }
+                }
+            });
+        }
+
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(workers);
+                }
+            });
+        } catch (TaskException e) {
+            Throwable cause = e;
+            while (cause instanceof TaskException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+        long wallNanos = System.nanoTime() - startTime;
+
+        for (BoundedTopK top : workerTops) {
+            best.merge(top);
+        }
+        int scoredNum = 0;
+        for (boolean scored : isScored) {
+            if (scored) {
+                ++scoredNum;
+            }
+        }
+        for (int k = 0; k < cells.length && best.size() < capacity; ++k) {
+            if (!isScored[k]) {
+                best.offer(Double.NEGATIVE_INFINITY, cells[k]);
+            }
+        }
+
+        return new StepReport(cells.length, scoredNum, workers.size(), wallNanos, busyNanos.sum(), getParallelism());
+    }
+
+    /**
+     * Count bytes allocated by tasks which the current thread submits
+     * until the counter is set to null.
+     *
+     * @param counter null if allocations aren't counted
+     */
+    public static void setAllocationCounter(LongAdder counter) {
+        if (counter == null) {
+            allocationCounter.remove();
+        } else {
+            allocationCounter.set(counter);
+        }
+    }
+
+    /**
+     * Counts bytes allocated by a task if it runs on another thread than the
+     * one which submitted it.
+     */
+    private static class AllocationMeter {
+        private final LongAdder counter; // null if allocations aren't counted
+        private final long callerId; // id of the thread which submitted the task
+
+        AllocationMeter() {
+            this.counter = allocationCounter.get();
+            this.callerId = Thread.currentThread().getId();
+        }
+
+        /**
+         * @return bytes allocated by the current thread so far, -1 if they aren't counted
+         */
+        long start() {
+            if (counter == null || Thread.currentThread().getId() == callerId) {
+                return -1;
+            }
+            return StepMetrics.getThreadAllocatedBytes();
+        }
+
+        void finish(long startBytes) {
+            if (startBytes >= 0) {
+                counter.add(StepMetrics.getThreadAllocatedBytes() - startBytes);
+            }
+        }
+    }
+
+    /**
+     * Called by a ScoreTask of selectByPriority(..) between parts of long
+     * work, throws CancellationException if the time budget of the step has
+     * run out. Does nothing if called from anywhere else.
+     */
+    public static void checkDeadline() {
+        Long taskDeadline = deadline.get();
+        if (taskDeadline != null && System.nanoTime() >= taskDeadline) {
+            throw new CancellationException("Time budget of the step has run out");
+        }
+    }
+
+    /**
+     * Work to do for cells [from, to) of the sorted cells.
+     */
+    private interface ChunkRunner {
+        void run(Step step, int from, int to) throws Exception;
+    }
+
+    private StepReport run(int[] cells, int m, ChunkRunner runner) throws Exception {
+        // counting sort by attribute, order of instances inside of attribute is kept
+        int[] attrStarts = new int[m + 1];
+        for (int cell : cells) {
+            ++attrStarts[cell % m + 1];
+        }
+        for (int j = 0; j < m; ++j) {
+            attrStarts[j + 1] += attrStarts[j];
+        }
+        int[] sorted = new int[cells.length];
+        int[] pos = attrStarts.clone();
+        for (int cell : cells) {
+            sorted[pos[cell % m]++] = cell;
+        }
+
+        int grain = Math.max(1, cells.length / (getParallelism() * CHUNKS_PER_WORKER));
+        Step step = new Step(sorted, attrStarts, m, grain, runner);
+
+        long startTime = System.nanoTime();
+        try {
+            pool.invoke(new ChunkAction(step, 0, sorted.length));
+        } catch (TaskException e) {
+            Throwable cause = e;
+            while (cause instanceof TaskException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+        long wallNanos = System.nanoTime() - startTime;
+
+        return new StepReport(cells.length, step.chunks.sum(), wallNanos, step.busyNanos.sum(), getParallelism());
+    }
+
+    /**
+     * Shared state of one step.
+     */
+    private static class Step {
+        final int[] cells; // sorted by attribute
+        final int[] attrStarts;
+        final int m;
+        final int grain;
+        final ChunkRunner runner;
+
+        final AtomicBoolean isFailed = new AtomicBoolean();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder chunks = new LongAdder();
+        final AllocationMeter meter = new AllocationMeter(); // made on the calling thread
+
+        Step(int[] cells, int[] attrStarts, int m, int grain, ChunkRunner runner) {
+            this.cells = cells;
+            this.attrStarts = attrStarts;
+            this.m = m;
+            this.grain = grain;
+            this.runner = runner;
+        }
+
+        /**
+         * Point to split [from, to) at: attribute boundary nearest to the
+         * middle, or the middle if the range is inside of one attribute.
+         */
+        int splitPoint(int from, int to) {
+            int mid = (from + to) >>> 1;
+            int best = mid;
+            int bestDist = Integer.MAX_VALUE;
+            for (int j = cells[from] % m + 1; j < m && attrStarts[j] < to; ++j) {
+                int dist = Math.abs(attrStarts[j] - mid);
+                if (attrStarts[j] > from && dist < bestDist) {
+                    best = attrStarts[j];
+                    bestDist = dist;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static class ChunkAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Step step;
+        private final int from;
+        private final int to;
+
+        ChunkAction(Step step, int from, int to) {
+            this.step = step;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > step.grain) {
+                int mid = step.splitPoint(from, to);
+                invokeAll(new ChunkAction(step, from, mid), new ChunkAction(step, mid, to));
+                return;
+            }
+
+            step.chunks.increment();
+            long startTime = System.nanoTime();
+            long startBytes = step.meter.start();
+            try {
+                step.runner.run(step, from, to);
+            } catch (Exception e) {
+                step.isFailed.set(true);
+                throw new TaskException(e);
+            } finally {
+                step.busyNanos.add(System.nanoTime() - startTime);
+                step.meter.finish(startBytes);
+            }
+        }
+    }
+
+    private static class TaskException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TaskException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Statistics of one step: how many queries were scored and how busy the
+     * workers were.
+     */
+    public static class StepReport {
+        private final int tasksNum;
+        private final int scoredNum; // tasks which were run to the end
+        private final long chunksNum;
+        private final long wallNanos;
+        private final long busyNanos;
+        private final int parallelism;
+
+        public StepReport(int tasksNum, long chunksNum, long wallNanos, long busyNanos, int parallelism) {
+            this(tasksNum, tasksNum, chunksNum, wallNanos, busyNanos, parallelism);
+        }
+
+        public StepReport(int tasksNum, int scoredNum, long chunksNum, long wallNanos, long busyNanos,
+                          int parallelism) {
+            this.tasksNum = tasksNum;
+            this.scoredNum = scoredNum;
+            this.chunksNum = chunksNum;
+            this.wallNanos = wallNanos;
+            this.busyNanos = busyNanos;
+            this.parallelism = parallelism;
+        }
+
+        public int getTasksNum() {
+            return tasksNum;
+        }
+
+        /**
+         * Number of tasks which were run to the end, less than getTasksNum()
+         * if the time budget of the step has run out.
+         */
+        public int getScoredNum() {
+            return scoredNum;
+        }
+
+        public long getChunksNum() {
+            return chunksNum;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /**
+         * Busy time of workers divided by (wall time * parallelism).
+         */
+        public double getUtilisation() {
+            return wallNanos == 0 ? 0.0 : (double) busyNanos / ((double) wallNanos * parallelism);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tasks = %d, scored = %d, chunks = %d, wall = %.1f ms, utilisation = %.1f%%",
+                    tasksNum, scoredNum, chunksNum, wallNanos / 1e6, 100 * getUtilisation());
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package ru.ifmo.ctddev.mazin.AFA;
+
+import weka.classifiers.trees.j48.C45ModelSelection;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.Distribution;
+import weka.classifiers.trees.j48.NoSplit;
+import weka.classifiers.trees.j48.Stats;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.Arrays;
+
+/**
+ * J48 (as built by DatasetFactory.staticMakeClassifier(..)) of the instances,
+ * which can answer "what if the missing value (i, j) was 'value'" without
+ * building the whole tree again.
+ *
+ * Grown (unpruned) tree is kept together with the data of every node, and
+ * every grown node remembers its subtree after collapsing and pruning. The
+ * subtree of J48 depends on the data of its root only, so when the tree is
+ * grown for the changed instances, a node whose data (instances and their
+ * weights) is the same as in the kept tree and doesn't contain the changed
+ * instance is taken from the kept tree as is. Only nodes the changed
+ * instance reaches are grown, collapsed and pruned again, the same way
+ * C45PruneableClassifierTree does it, so the result is identical to a full
+ * rebuild.
+ *
+ * Changed attribute has to be nominal (split points of numeric attributes
+ * depend on the values of all instances). Object is immutable and can be
+ * shared between threads.
+ */
+public class WhatIfJ48 {
+    private static final int MIN_NUM_OBJ = 2; // J48 defaults
+    private static final float CF = 0.25f;
+
+    private final Instances instances;
+    private final C45ModelSelection modelSelection;
+    private final GrownNode root;
+    private final CompiledJ48 classifier;
+
+    public WhatIfJ48(Instances instances) throws Exception {
+        if (instances.classIndex() < 0) {
+            throw new IllegalArgumentException("The class index for the instances isn't specified");
+        }
+
+        this.instances = instances;
+        modelSelection = new C45ModelSelection(MIN_NUM_OBJ, instances, true);
+        root = growRoot(instances);
+        classifier = CompiledJ48.compile(root.pruned, true);
+    }
+
+    /**
+     * Returns tree built on the instances.
+     */
+    public CompiledJ48 getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * Returns tree built on the instances with value (instIndex, attrIndex)
+     * set to 'value'.
+     */
+    public CompiledJ48 buildWithValue(int instIndex, int attrIndex, double value) throws Exception {
+        return build(withValue(instIndex, attrIndex, value), instIndex);
+    }
+
+    /**
+     * Returns tree built on 'changed' returned by withValue(instIndex, ..),
+     * so the caller which needs both makes the overlay once.
+     */
+    public CompiledJ48 build(InstancesOverlay changed, int instIndex) throws Exception {
+        return CompiledJ48.compile(growWithValue(changed, instIndex).pruned, true);
+    }
+
+    /**
+     * Returns accuracy on the instances with value (instIndex, attrIndex) set
+     * to 'value' of the tree built on them, i.e. the same as
+     * DatasetFactory.calculateAccuracy(DatasetFactory.staticMakeClassifier(changed), changed).
+     */
+    public double getAccuracyWithValue(int instIndex, int attrIndex, double value) throws Exception {
+        InstancesOverlay changed = withValue(instIndex, attrIndex, value);
+        return DatasetFactory.calculateAccuracy(build(changed, instIndex), changed);
+    }
+
+    /**
+     * Returns the instances with value (instIndex, attrIndex) set to 'value'.
+     */
+    public InstancesOverlay withValue(int instIndex, int attrIndex, double value) {
+        if (!instances.attribute(attrIndex).isNominal()) {
+            throw new IllegalArgumentException("Only nominal attributes can be changed");
+        }
+
+        InstancesOverlay changed = new InstancesOverlay(instances);
+        changed.setValue(instIndex, attrIndex, value);
+        return changed;
+    }
+
+    private GrownNode growWithValue(InstancesOverlay changed, int instIndex) throws Exception {
+        if (Arrays.binarySearch(root.rows, instIndex) < 0) {
+            return root; // instance with missing class isn't used for training
+        }
+
+        Instances rootData = new Instances(instances, root.rows.length);
+        for (int row : root.rows) {
+            rootData.add(changed.instance(row));
+        }
+        return regrow(root, rootData, root.rows, instIndex);
+    }
+
+    private GrownNode growRoot(Instances data) throws Exception {
+        int[] rows = new int[data.numInstances()];
+        int size = 0;
+        for (int i = 0; i < data.numInstances(); ++i) {
+            if (!data.instance(i).classIsMissing()) {
+                rows[size++] = i;
+            }
+        }
+
+        Instances rootData = new Instances(data);
+        rootData.deleteWithMissingClass();
+        return regrow(null, rootData, Arrays.copyOf(rows, size), -1);
+    }
+
+    /**
+     * Returns 'old' if it has the same data, otherwise grows the node again.
+     */
+    private GrownNode regrow(GrownNode old, Instances data, int[] rows, int changedRow) throws Exception {
+        if (old != null && old.hasData(data, rows, changedRow)) {
+            return old;
+        }
+
+        ClassifierSplitModel model = modelSelection.selectModel(data);
+        if (model.numSubsets() <= 1) {
+            return new GrownNode(data, rows, model, null);
+        }
+
+        int[][] sonsRows = new int[model.numSubsets()][];
+        Instances[] sonsData = split(data, rows, model, model.distribution(), sonsRows);
+        boolean isSameSplit = old != null && old.sons != null
+                && ((C45Split) old.model).attIndex() == ((C45Split) model).attIndex();
+
+        GrownNode[] sons = new GrownNode[sonsData.length];
+        for (int k = 0; k < sons.length; ++k) {
+            sons[k] = regrow(isSameSplit ? old.sons[k] : null, sonsData[k], sonsRows[k], changedRow);
+        }
+        return new GrownNode(data, rows, model, sons);
+    }
+
+    /**
+     * The same as ClassifierSplitModel.split(..) with weights of instances
+     * with missing value taken from 'dist'.
+     *
+     * @param data
+     * @param rows indexes of 'data' instances, can be null
+     * @param model
+     * @param dist
+     * @param sonsRows indexes of instances of the subsets are put here, if 'rows' isn't null
+     * @return
+     * @throws Exception
+     */
+    private static Instances[] split(Instances data,
+                                     int[] rows,
+                                     ClassifierSplitModel model,
+                                     Distribution dist,
+                                     int[][] sonsRows) throws Exception {
+        int numSubsets = model.numSubsets();
+        double[] weights = new double[numSubsets];
+        for (int k = 0; k < numSubsets; ++k) {
+            weights[k] = dist.perBag(k) / dist.total();
+        }
+
+        Instances[] res = new Instances[numSubsets];
+        int[] sizes = new int[numSubsets];
+        for (int k = 0; k < numSubsets; ++k) {
+            res[k] = new Instances(data, data.numInstances());
+            if (rows != null) {
+                sonsRows[k] = new int[data.numInstances()];
+            }
+        }
+
+        for (int i = 0; i < data.numInstances(); ++i) {
+            Instance inst = data.instance(i);
+            int subset = model.whichSubset(inst);
+            if (subset > -1) {
+                res[subset].add(inst);
+                if (rows != null) {
+                    sonsRows[subset][sizes[subset]++] = rows[i];
+                }
+            } else {
+                for (int k = 0; k < numSubsets; ++k) {
+                    if (Utils.gr(weights[k], 0)) {
+                        res[k].add(inst);
+                        res[k].lastInstance().setWeight(weights[k] * inst.weight());
+                        if (rows != null) {
+                            sonsRows[k][sizes[k]++] = rows[i];
+                        }
+                    }
+                }
+            }
+        }
+
+        if (rows != null) {
+            for (int k = 0; k < numSubsets; ++k) {
+                sonsRows[k] = Arrays.copyOf(sonsRows[k], sizes[k]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The same as C45Split.resetDistribution(..).
+     */
+    private static Distribution splitDistribution(ClassifierSplitModel model, Instances data) throws Exception {
+        Instances known = new Instances(data, data.numInstances());
+        for (int i = 0; i < data.numInstances(); ++i) {
+            if (model.whichSubset(data.instance(i)) > -1) {
+                known.add(data.instance(i));
+            }
+        }
+
+        Distribution res = new Distribution(known, model);
+        res.addInstWithUnknown(data, ((C45Split) model).attIndex());
+        return res;
+    }
+
+    /**
+     * Node of the grown tree with its data and the subtree after collapsing
+     * and pruning.
+     */
+    private static class GrownNode {
+        final Instances data;
+        final int[] rows; // indexes of 'data' instances in the instances
+        final ClassifierSplitModel model;
+        final GrownNode[] sons; // null for leaf
+        final double trainingErrors; // training errors of the grown subtree
+        final Node pruned;
+
+        GrownNode(Instances data, int[] rows, ClassifierSplitModel model, GrownNode[] sons) throws Exception {
+            this.data = data;
+            this.rows = rows;
+            this.model = model;
+            this.sons = sons;
+
+            Distribution dist = model.distribution();
+            if (sons == null) {
+                trainingErrors = dist.numIncorrect();
+                pruned = new Node(data, model, dist, null, Utils.eq(data.sumOfWeights(), 0));
+            } else {
+                double errors = 0;
+                for (GrownNode son : sons) {
+                    errors = errors + son.trainingErrors;
+                }
+                trainingErrors = errors;
+
+                if (trainingErrors >= dist.numIncorrect() - 1E-3) {
+                    // collapse
+                    pruned = Node.makeLeaf(data, dist, false);
+                } else {
+                    Node[] prunedSons = new Node[sons.length];
+                    for (int k = 0; k < sons.length; ++k) {
+                        prunedSons[k] = sons[k].pruned;
+                    }
+                    pruned = new Node(data, model, dist, prunedSons, false).pruneNode();
+                }
+            }
+        }
+
+        /**
+         * Node has exactly 'data' and doesn't contain the changed instance.
+         */
+        boolean hasData(Instances otherData, int[] otherRows, int changedRow) {
+            if (!Arrays.equals(rows, otherRows) || Arrays.binarySearch(rows, changedRow) >= 0) {
+                return false;
+            }
+            for (int i = 0; i < rows.length; ++i) {
+                if (data.instance(i).weight() != otherData.instance(i).weight()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Node of the pruned tree, the same as C45PruneableClassifierTree node.
+     */
+    private static class Node implements CompiledJ48.Node {
+        final Instances train;
+        final ClassifierSplitModel model;
+        final Distribution dist;
+        final Node[] sons; // null for leaf
+        final boolean isEmpty;
+
+        Node(Instances train, ClassifierSplitModel model, Distribution dist, Node[] sons, boolean isEmpty) {
+            this.train = train;
+            this.model = model;
+            this.dist = dist;
+            this.sons = sons;
+            this.isEmpty = isEmpty;
+        }
+
+        static Node makeLeaf(Instances train, Distribution dist, boolean isEmpty) {
+            NoSplit noSplit = new NoSplit(dist);
+            return new Node(train, noSplit, noSplit.distribution(), null, isEmpty);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return sons == null;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return isEmpty;
+        }
+
+        @Override
+        public ClassifierSplitModel getSplitModel() {
+            return model;
+        }
+
+        @Override
+        public Distribution getDistribution() {
+            return dist;
+        }
+
+        @Override
+        public Node[] getSons() {
+            return sons;
+        }
+
+        /**
+         * C45PruneableClassifierTree.prune()
+         */
+        Node prune() throws Exception {
+            if (sons == null) {
+                return this;
+            }
+
+            Node[] prunedSons = new Node[sons.length];
+            for (int k = 0; k < sons.length; ++k) {
+                prunedSons[k] = sons[k].prune();
+            }
+            return new Node(train, model, dist, prunedSons, isEmpty).pruneNode();
+        }
+
+        /**
+         * C45PruneableClassifierTree.prune() of the node with already pruned sons.
+         */
+        Node pruneNode() throws Exception {
+            int indexOfLargestBranch = dist.maxBag();
+            double errorsLargestBranch = sons[indexOfLargestBranch].getEstimatedErrorsForBranch(train);
+            double errorsLeaf = getEstimatedErrorsForDistribution(dist);
+            double errorsTree = getEstimatedErrors();
+
+            if (Utils.smOrEq(errorsLeaf, errorsTree + 0.1) && Utils.smOrEq(errorsLeaf, errorsLargestBranch + 0.1)) {
+                return makeLeaf(train, dist, isEmpty);
+            }
+
+            if (Utils.smOrEq(errorsLargestBranch, errorsTree + 0.1)) {
+                Node largestBranch = sons[indexOfLargestBranch];
+                return new Node(train, largestBranch.model, largestBranch.dist, largestBranch.sons, isEmpty)
+                        .newDistribution(train)
+                        .prune();
+            }
+
+            return this;
+        }
+
+        /**
+         * C45PruneableClassifierTree.newDistribution(..)
+         */
+        Node newDistribution(Instances data) throws Exception {
+            if (sons == null) {
+                Distribution newDist = new Distribution(data, model);
+                return new Node(data, model, newDist, null, isEmpty && Utils.eq(data.sumOfWeights(), 0));
+            }
+
+            Distribution newDist = splitDistribution(model, data);
+            Instances[] sonsData = split(data, null, model, newDist, null);
+            Node[] newSons = new Node[sons.length];
+            for (int k = 0; k < sons.length; ++k) {
+                newSons[k] = sons[k].newDistribution(sonsData[k]);
+            }
+            return new Node(data, model, newDist, newSons, isEmpty);
+        }
+
+        double getEstimatedErrors() {
+            if (sons == null) {
+                return getEstimatedErrorsForDistribution(dist);
+            }
+
+            double errors = 0;
+            for (Node son : sons) {
+                errors = errors + son.getEstimatedErrors();
+            }
+            return errors;
+        }
+
+        double getEstimatedErrorsForBranch(Instances data) throws Exception {
+            if (sons == null) {
+                return getEstimatedErrorsForDistribution(new Distribution(data));
+            }
+
+            Instances[] sonsData = split(data, null, model, splitDistribution(model, data), null);
+            double errors = 0;
+            for (int k = 0; k < sons.length; ++k) {
+                errors = errors + sons[k].getEstimatedErrorsForBranch(sonsData[k]);
+            }
+            return errors;
+        }
+
+        static double getEstimatedErrorsForDistribution(Distribution theDistribution) {
+            if (Utils.eq(theDistribution.total(), 0)) {
+                return 0;
+            }
+            return theDistribution.numIncorrect()
+                    + Stats.addErrs(theDistribution.total(), theDistribution.numIncorrect(), CF);
+        }
+    }
+}